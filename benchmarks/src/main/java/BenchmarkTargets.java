@@ -0,0 +1,46 @@
+import bench.MapOps;
+import bench.TreeMapOps;
+
+/**
+ * The implementations the benchmarks can run against, by name.
+ */
+public class BenchmarkTargets {
+
+    /**
+     * @param implementation The name of the implementation
+     * @return An empty map wrapped for the benchmarks
+     * @throws IllegalArgumentException When the name is unknown
+     */
+    public static MapOps create(String implementation) {
+        switch (implementation) {
+            case "TreeMap":
+                return new TreeMapOps();
+            case "SortedTreeMap":
+                return new SortedTreeMapOps(SortedTreeMap::new);
+            case "SortedTreeMapWithValueIndex":
+                return new SortedTreeMapOps(() -> {
+                    SortedTreeMap<Integer, Integer> map = new SortedTreeMap<>();
+                    map.enableValueIndex();
+                    return map;
+                });
+            case "SortedTreeMapWithKeyIndex":
+                return new SortedTreeMapOps(() -> {
+                    SortedTreeMap<Integer, Integer> map = new SortedTreeMap<>();
+                    map.enableKeyIndex();
+                    return map;
+                });
+            case "ArraySortedTreeMap":
+                return new SortedTreeMapOps(ArraySortedTreeMap::new);
+            case "BTreeMap":
+                return new SortedTreeMapOps(BTreeMap::new);
+            case "ConcurrentSortedTreeMap":
+                return new SortedTreeMapOps(ConcurrentSortedTreeMap::new);
+            case "StampedSortedTreeMap":
+                return new SortedTreeMapOps(StampedSortedTreeMap::new);
+            case "PersistentSortedTreeMap":
+                return new SortedTreeMapOps(PersistentSortedTreeMap::new);
+            default:
+                throw new IllegalArgumentException("Unknown implementation: " + implementation);
+        }
+    }
+}
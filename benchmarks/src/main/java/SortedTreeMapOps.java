@@ -0,0 +1,95 @@
+import bench.MapOps;
+
+import java.util.function.Supplier;
+
+/**
+ * Adapter from the benchmark operations to any ISortedTreeMap.
+ */
+public class SortedTreeMapOps implements MapOps {
+    private final Supplier<ISortedTreeMap<Integer, Integer>> factory;
+    private final ISortedTreeMap<Integer, Integer> map;
+
+    public SortedTreeMapOps(Supplier<ISortedTreeMap<Integer, Integer>> factory) {
+        this.factory = factory;
+        this.map = factory.get();
+    }
+
+    public MapOps empty() {
+        return new SortedTreeMapOps(factory);
+    }
+
+    public void add(int key, int value) {
+        map.add(key, value);
+    }
+
+    public int getValue(int key) {
+        return map.getValue(key);
+    }
+
+    public boolean containsKey(int key) {
+        return map.containsKey(key);
+    }
+
+    public boolean containsValue(int value) {
+        return map.containsValue(value);
+    }
+
+    public int remove(int key) {
+        return map.remove(key);
+    }
+
+    public void replace(int key, int value) {
+        map.replace(key, value);
+    }
+
+    public void increment(int key) {
+        map.replace(key, (k, v) -> v + 1);
+    }
+
+    public void count(int key) {
+        map.merge(key, 1, Integer::sum);
+    }
+
+    public void merge(MapOps other) {
+        map.merge(((SortedTreeMapOps) other).map);
+    }
+
+    public void parallelMerge(MapOps other) {
+        if (map instanceof SortedTreeMap && ((SortedTreeMapOps) other).map instanceof SortedTreeMap) {
+            ((SortedTreeMap<Integer, Integer>) map)
+                    .parallelMerge((SortedTreeMap<Integer, Integer>) ((SortedTreeMapOps) other).map);
+            return;
+        }
+        merge(other);
+    }
+
+    public void removeIf(int divisor) {
+        map.removeIf((key, value) -> key % divisor == 0);
+    }
+
+    public int higherOrEqualKey(int key) {
+        Entry<Integer, Integer> ceiling = map.higherOrEqualEntry(key);
+        return ceiling == null ? Integer.MIN_VALUE : ceiling.key;
+    }
+
+    public long sumValues() {
+        long sum = 0;
+        for (Entry<Integer, Integer> entry : map.entries()) {
+            sum += entry.value;
+        }
+        return sum;
+    }
+
+    public long parallelSumValues() {
+        if (map instanceof SortedTreeMap) {
+            return ((SortedTreeMap<Integer, Integer>) map).valueStream().parallel()
+                    .mapToLong(Integer::longValue)
+                    .sum();
+        }
+        return sumValues();
+    }
+
+    public int size() {
+        return map.size();
+    }
+}
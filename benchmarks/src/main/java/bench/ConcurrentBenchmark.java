@@ -0,0 +1,74 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the thread-safe implementations under concurrent use. The read benchmark
+ * scales with the thread count given to JMH (-t), and the readMostly group runs seven
+ * readers next to one writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class ConcurrentBenchmark {
+
+    @Param({"ConcurrentSortedTreeMap", "StampedSortedTreeMap"})
+    public String implementation;
+
+    @Param({"100000", "1000000"})
+    public int size;
+
+    private MapOps map;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        map = MapOps.create(implementation);
+        for (int key : KeyDistribution.RANDOM.insertionOrder(size, new Random(42))) {
+            map.add(key, key);
+        }
+    }
+
+    private int randomKey() {
+        return ThreadLocalRandom.current().nextInt(size * 2);
+    }
+
+    @Benchmark
+    public boolean read() {
+        return map.containsKey(randomKey());
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(7)
+    public int readMostlyRead() {
+        return map.higherOrEqualKey(randomKey());
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(1)
+    public void readMostlyWrite() {
+        int key = randomKey();
+        map.add(key, key);
+    }
+}
@@ -0,0 +1,104 @@
+package bench;
+
+import java.util.Random;
+
+/**
+ * How keys are inserted into the map and which keys the benchmarks look up. The map always
+ * holds the even keys 0, 2, ..., 2(n-1), so key + 1 is never present.
+ */
+public enum KeyDistribution {
+    /** Keys inserted in random order, looked up uniformly at random. */
+    RANDOM,
+    /** Keys inserted in ascending order, looked up in ascending runs. */
+    ASCENDING,
+    /** Keys inserted in descending order, looked up in descending runs. */
+    DESCENDING,
+    /** Keys inserted in random order, looked up with a Zipfian skew towards a few hot keys. */
+    ZIPFIAN;
+
+    /**
+     * @param n Number of keys
+     * @return The keys of the map, in the order they are inserted
+     */
+    public int[] insertionOrder(int n, Random random) {
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = this == DESCENDING ? 2 * (n - 1 - i) : 2 * i;
+        }
+        if (this == RANDOM || this == ZIPFIAN) {
+            for (int i = n - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int swap = keys[i];
+                keys[i] = keys[j];
+                keys[j] = swap;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @param keys The keys of the map, in insertion order
+     * @param count Number of probes
+     * @return Keys of the map in the order they are looked up
+     */
+    public int[] probes(int[] keys, int count, Random random) {
+        int n = keys.length;
+        int[] probes = new int[count];
+        int start = random.nextInt(n);
+        Zipf zipf = this == ZIPFIAN ? new Zipf(n, 0.99) : null;
+        for (int i = 0; i < count; i++) {
+            switch (this) {
+                case ASCENDING:
+                    probes[i] = 2 * ((start + i) % n);
+                    break;
+                case DESCENDING:
+                    probes[i] = 2 * (n - 1 - (start + i) % n);
+                    break;
+                case ZIPFIAN:
+                    // The insertion order is random, so the hot keys are spread over the map.
+                    probes[i] = keys[zipf.next(random)];
+                    break;
+                default:
+                    probes[i] = keys[random.nextInt(n)];
+            }
+        }
+        return probes;
+    }
+
+    /**
+     * Zipfian ranks in [0, n), following Gray et al., "Quickly generating billion-record
+     * synthetic databases", as used by YCSB.
+     */
+    private static class Zipf {
+        private final int n;
+        private final double theta;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+
+        Zipf(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            double zeta = 0;
+            for (int i = 1; i <= n; i++) {
+                zeta += 1 / Math.pow(i, theta);
+            }
+            zetaN = zeta;
+            double zeta2 = 1 + 1 / Math.pow(2, theta);
+            alpha = 1 / (1 - theta);
+            eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetaN);
+        }
+
+        int next(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + Math.pow(0.5, theta)) {
+                return Math.min(1, n - 1);
+            }
+            return Math.min(n - 1, (int) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+}
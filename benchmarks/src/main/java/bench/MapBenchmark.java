@@ -0,0 +1,209 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures every ISortedTreeMap operation on a map of the given size, with the keys
+ * inserted and looked up according to the distribution. Each implementation runs with
+ * the same keys and probes, so java.util.TreeMap results sit next to the others.
+ *
+ * Point operations take the average time per call. Operations on the whole map (load,
+ * merge, removeIf and iteration) take the average time for the whole map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class MapBenchmark {
+    private static final int PROBES = 1 << 16;
+
+    @Param({"SortedTreeMap", "SortedTreeMapWithValueIndex", "SortedTreeMapWithKeyIndex",
+            "ArraySortedTreeMap", "BTreeMap", "PersistentSortedTreeMap", "TreeMap"})
+    public String implementation;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"RANDOM", "ASCENDING", "DESCENDING", "ZIPFIAN"})
+    public KeyDistribution distribution;
+
+    private int[] insertionOrder;
+    private int[] probes;
+    private int cursor;
+    private MapOps map;
+    private MapOps lowerHalf;
+    private MapOps upperHalf;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        insertionOrder = distribution.insertionOrder(size, random);
+        probes = distribution.probes(insertionOrder, PROBES, random);
+        map = load();
+
+        // Two maps that overlap in a quarter of the keys, for merge.
+        lowerHalf = map.empty();
+        upperHalf = map.empty();
+        for (int key : insertionOrder) {
+            if (key < size + size / 4) {
+                lowerHalf.add(key, key);
+            }
+            if (key >= size - size / 4) {
+                upperHalf.add(key, -key);
+            }
+        }
+    }
+
+    /**
+     * Copy of the map for the benchmarks that remove entries from it.
+     */
+    @State(Scope.Thread)
+    public static class Copy {
+        MapOps map;
+
+        @Setup(Level.Invocation)
+        public void copy(MapBenchmark benchmark) {
+            map = benchmark.map.empty();
+            map.merge(benchmark.map);
+        }
+    }
+
+    private int nextProbe() {
+        cursor = (cursor + 1) & (PROBES - 1);
+        return probes[cursor];
+    }
+
+    @Benchmark
+    public MapOps load() {
+        MapOps loaded = MapOps.create(implementation);
+        for (int key : insertionOrder) {
+            loaded.add(key, key);
+        }
+        return loaded;
+    }
+
+    @Benchmark
+    public void add() {
+        int key = nextProbe();
+        map.add(key, key);
+    }
+
+    @Benchmark
+    public int getValue() {
+        return map.getValue(nextProbe());
+    }
+
+    /**
+     * Every other lookup is for a key that is not in the map.
+     */
+    @Benchmark
+    public boolean containsKey() {
+        return map.containsKey(nextProbe() + (cursor & 1));
+    }
+
+    /**
+     * Looks for a value that is not in the map, which is the worst case.
+     */
+    @Benchmark
+    public boolean containsValue() {
+        return map.containsValue(-1);
+    }
+
+    /**
+     * Removes a key and adds it back, so the size of the map stays the same.
+     */
+    @Benchmark
+    public int removeAndAdd() {
+        int key = nextProbe();
+        int value = map.remove(key);
+        map.add(key, value);
+        return value;
+    }
+
+    @Benchmark
+    public void replace() {
+        int key = nextProbe();
+        map.replace(key, key);
+    }
+
+    @Benchmark
+    public void replaceWithFunction() {
+        map.increment(nextProbe());
+    }
+
+    /**
+     * Every other key counted is one that is not in the map yet.
+     */
+    @Benchmark
+    public void count() {
+        map.count(nextProbe() + (cursor & 1));
+    }
+
+    /**
+     * Looks up the odd key above a key in the map, so the ceiling is never an exact match.
+     */
+    @Benchmark
+    public int higherOrEqualEntry() {
+        return map.higherOrEqualKey(nextProbe() + 1);
+    }
+
+    @Benchmark
+    public long iterate() {
+        return map.sumValues();
+    }
+
+    @Benchmark
+    public long iterateParallel() {
+        return map.parallelSumValues();
+    }
+
+    @Benchmark
+    public MapOps merge() {
+        MapOps merged = lowerHalf.empty();
+        merged.merge(lowerHalf);
+        merged.merge(upperHalf);
+        return merged;
+    }
+
+    @Benchmark
+    public MapOps parallelMerge() {
+        MapOps merged = lowerHalf.empty();
+        merged.merge(lowerHalf);
+        merged.parallelMerge(upperHalf);
+        return merged;
+    }
+
+    /**
+     * Removes one key in 32.
+     */
+    @Benchmark
+    public MapOps removeIfSparse(Copy copy) {
+        copy.map.removeIf(64);
+        return copy.map;
+    }
+
+    /**
+     * Removes every other key.
+     */
+    @Benchmark
+    public MapOps removeIfDense(Copy copy) {
+        copy.map.removeIf(4);
+        return copy.map;
+    }
+}
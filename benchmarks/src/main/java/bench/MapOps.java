@@ -0,0 +1,88 @@
+package bench;
+
+/**
+ * The operations the benchmarks measure, with int keys and values. The maps under test
+ * are in the default package, which JMH benchmarks cannot import, so each one is wrapped
+ * in an adapter and looked up by name through BenchmarkTargets.
+ */
+public interface MapOps {
+
+    /**
+     * Creates an adapter for the named implementation.
+     * @param implementation The name of the implementation, see BenchmarkTargets
+     * @return An empty map
+     */
+    static MapOps create(String implementation) {
+        try {
+            return (MapOps) Class.forName("BenchmarkTargets")
+                    .getMethod("create", String.class)
+                    .invoke(null, implementation);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + implementation, e);
+        }
+    }
+
+    /**
+     * @return A new, empty map of the same implementation
+     */
+    MapOps empty();
+
+    void add(int key, int value);
+
+    int getValue(int key);
+
+    boolean containsKey(int key);
+
+    boolean containsValue(int value);
+
+    int remove(int key);
+
+    void replace(int key, int value);
+
+    /**
+     * Increments the value for the key through replace(K, BiFunction).
+     */
+    void increment(int key);
+
+    /**
+     * Counts one more for the key through merge(K, V, BiFunction), adding it with a
+     * count of one when it is not present.
+     */
+    void count(int key);
+
+    /**
+     * Adds all entries of the other map, which must be of the same implementation.
+     */
+    void merge(MapOps other);
+
+    /**
+     * Adds all entries of the other map on all cores, where the implementation can, and
+     * otherwise like merge.
+     */
+    void parallelMerge(MapOps other);
+
+    /**
+     * Removes every entry with a key divisible by the divisor.
+     */
+    void removeIf(int divisor);
+
+    /**
+     * @return The lowest key that is higher than or equal to the key, or Integer.MIN_VALUE
+     */
+    int higherOrEqualKey(int key);
+
+    /**
+     * Iterates over all entries in key order.
+     * @return The sum of the values
+     */
+    long sumValues();
+
+    /**
+     * Sums the values on all cores, through a parallel stream where the implementation
+     * has one, and otherwise like sumValues.
+     * @return The sum of the values
+     */
+    long parallelSumValues();
+
+    int size();
+}
@@ -0,0 +1,80 @@
+package bench;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The java.util.TreeMap baseline.
+ */
+public class TreeMapOps implements MapOps {
+    private final TreeMap<Integer, Integer> map = new TreeMap<>();
+
+    public MapOps empty() {
+        return new TreeMapOps();
+    }
+
+    public void add(int key, int value) {
+        map.put(key, value);
+    }
+
+    public int getValue(int key) {
+        return map.get(key);
+    }
+
+    public boolean containsKey(int key) {
+        return map.containsKey(key);
+    }
+
+    public boolean containsValue(int value) {
+        return map.containsValue(value);
+    }
+
+    public int remove(int key) {
+        return map.remove(key);
+    }
+
+    public void replace(int key, int value) {
+        map.replace(key, value);
+    }
+
+    public void increment(int key) {
+        map.computeIfPresent(key, (k, v) -> v + 1);
+    }
+
+    public void count(int key) {
+        map.merge(key, 1, Integer::sum);
+    }
+
+    public void merge(MapOps other) {
+        map.putAll(((TreeMapOps) other).map);
+    }
+
+    public void parallelMerge(MapOps other) {
+        merge(other);
+    }
+
+    public void removeIf(int divisor) {
+        map.keySet().removeIf(key -> key % divisor == 0);
+    }
+
+    public int higherOrEqualKey(int key) {
+        Integer ceiling = map.ceilingKey(key);
+        return ceiling == null ? Integer.MIN_VALUE : ceiling;
+    }
+
+    public long sumValues() {
+        long sum = 0;
+        for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+            sum += entry.getValue();
+        }
+        return sum;
+    }
+
+    public long parallelSumValues() {
+        return map.values().parallelStream().mapToLong(Integer::longValue).sum();
+    }
+
+    public int size() {
+        return map.size();
+    }
+}
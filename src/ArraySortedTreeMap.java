@@ -0,0 +1,627 @@
+/**
+ * Sorted map with its nodes stored in parallel arrays.
+ */
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+
+/**
+ * A red-black tree like SortedTreeMap, but with the nodes kept in parallel arrays
+ * instead of one Entry object per node. A node is an index into the arrays: its key,
+ * value, children and parent are at that index, and its color is one bit. Children
+ * and parents are int indices, so the collector only sees a handful of arrays no
+ * matter how many entries the map holds, and neighbouring nodes often share cache
+ * lines. Slots of removed nodes are reused through a free list.
+ *
+ * Entries returned by this map are copies of the key and value. Setting the value
+ * of a returned entry does not change the map.
+ */
+public class ArraySortedTreeMap<K extends Comparable<? super K>, V> implements ISortedTreeMap<K, V> {
+    private static final int NIL = 0;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private Object[] keys;
+    private Object[] values;
+    private int[] left;
+    private int[] right;
+    private int[] parent;
+    private long[] red;
+
+    private int root = NIL;
+    private int size;
+    private int modCount;
+    // Slots below used have been handed out; freed slots are chained through left.
+    private int used = 1;
+    private int free = NIL;
+    private final Comparator<K> comparator;
+
+    public ArraySortedTreeMap(int initialCapacity, Comparator<K> kComparator) {
+        int capacity = Math.max(2, initialCapacity + 1);
+        keys = new Object[capacity];
+        values = new Object[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        parent = new int[capacity];
+        red = new long[(capacity + 63) >>> 6];
+        comparator = kComparator;
+    }
+
+    public ArraySortedTreeMap(Comparator<K> kComparator) {
+        this(DEFAULT_CAPACITY, kComparator);
+    }
+
+    public ArraySortedTreeMap() {
+        this(DEFAULT_CAPACITY, null);
+    }
+
+    public Entry<K, V> min() {
+        return root == NIL ? null : toEntry(min(root));
+    }
+
+    public Entry<K, V> max() {
+        if (root == NIL) {
+            return null;
+        }
+        int node = root;
+        while (right[node] != NIL) {
+            node = right[node];
+        }
+        return toEntry(node);
+    }
+
+    public V add(K key, V value) {
+        int futureParent = NIL;
+        int current = root;
+        int compare = 0;
+
+        while (current != NIL) {
+            futureParent = current;
+            compare = compare(key, key(current));
+            if (compare > 0) {
+                current = right[current];
+            }
+            else if (compare < 0) {
+                current = left[current];
+            }
+            else {
+                V returnValue = value(current);
+                values[current] = value;
+                return returnValue;
+            }
+        }
+
+        int node = allocate(key, value);
+        parent[node] = futureParent;
+        if (futureParent == NIL) {
+            root = node;
+        }
+        else if (compare < 0) {
+            left[futureParent] = node;
+        }
+        else {
+            right[futureParent] = node;
+        }
+        setRed(node, true);
+        insertFixup(node);
+
+        size++;
+        modCount++;
+        return null;
+    }
+
+    public V add(Entry<K, V> entry) {
+        return add(entry.key, entry.value);
+    }
+
+    public void replace(K key, V value) throws NoSuchElementException {
+        values[findExisting(key)] = value;
+    }
+
+    public void replace(K key, BiFunction<K, V, V> f) throws NoSuchElementException {
+        int node = findExisting(key);
+        values[node] = f.apply(key(node), value(node));
+    }
+
+    public V remove(Object key) throws NoSuchElementException {
+        int node = findExisting((K) key);
+        V value = value(node);
+        deleteNode(node);
+        return value;
+    }
+
+    public V getValue(Object key) throws NoSuchElementException {
+        return value(findExisting((K) key));
+    }
+
+    public boolean containsKey(K key) {
+        return findNode(key) != NIL;
+    }
+
+    public boolean containsValue(V value) {
+        for (int node = root == NIL ? NIL : min(root); node != NIL; node = successor(node)) {
+            if (values[node].equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Iterable<K> keys() {
+        return () -> new NodeIterator<K>() {
+            public K next() {
+                return key(nextNode());
+            }
+        };
+    }
+
+    public Iterable<V> values() {
+        return () -> new NodeIterator<V>() {
+            public V next() {
+                return value(nextNode());
+            }
+        };
+    }
+
+    public Iterable<Entry<K, V>> entries() {
+        return () -> new NodeIterator<Entry<K, V>>() {
+            public Entry<K, V> next() {
+                return toEntry(nextNode());
+            }
+        };
+    }
+
+    public Entry<K, V> higherOrEqualEntry(K key) {
+        return toEntry(nearest(key, true, true));
+    }
+
+    public Entry<K, V> lowerOrEqualEntry(K key) {
+        return toEntry(nearest(key, false, true));
+    }
+
+    public Entry<K, V> higherEntry(K key) {
+        return toEntry(nearest(key, true, false));
+    }
+
+    public Entry<K, V> lowerEntry(K key) {
+        return toEntry(nearest(key, false, false));
+    }
+
+    public ISortedTreeMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return new SubMap<>(this, comparator, fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    public ISortedTreeMap<K, V> headMap(K toKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, null, false, toKey, inclusive);
+    }
+
+    public ISortedTreeMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, fromKey, inclusive, null, false);
+    }
+
+    public void merge(ISortedTreeMap<K, V> other) {
+        if (other == this) {
+            return;
+        }
+        for (Entry<K, V> entry : other.entries()) {
+            add(entry.key, entry.value);
+        }
+    }
+
+    public void removeIf(BiPredicate<K, V> p) {
+        int[] doomed = new int[Math.min(size, 16)];
+        int count = 0;
+        for (int node = root == NIL ? NIL : min(root); node != NIL; node = successor(node)) {
+            if (p.test(key(node), value(node))) {
+                if (count == doomed.length) {
+                    doomed = Arrays.copyOf(doomed, count * 2);
+                }
+                doomed[count++] = node;
+            }
+        }
+        // Deleting moves nodes rather than their contents, so the indices stay valid.
+        for (int i = 0; i < count; i++) {
+            deleteNode(doomed[i]);
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0, used, null);
+        Arrays.fill(values, 0, used, null);
+        Arrays.fill(left, 0, used, NIL);
+        Arrays.fill(right, 0, used, NIL);
+        Arrays.fill(parent, 0, used, NIL);
+        Arrays.fill(red, 0L);
+        root = NIL;
+        size = 0;
+        used = 1;
+        free = NIL;
+        modCount++;
+    }
+
+    /**
+     * Takes a slot from the free list, or the next unused slot, growing the arrays
+     * when they are full.
+     * @return index of the new node
+     */
+    private int allocate(K key, V value) {
+        int node;
+        if (free != NIL) {
+            node = free;
+            free = left[node];
+        }
+        else {
+            if (used == keys.length) {
+                grow();
+            }
+            node = used++;
+        }
+        keys[node] = key;
+        values[node] = value;
+        left[node] = NIL;
+        right[node] = NIL;
+        parent[node] = NIL;
+        return node;
+    }
+
+    /**
+     * Clears the slot of an unlinked node and puts it on the free list.
+     */
+    private void release(int node) {
+        keys[node] = null;
+        values[node] = null;
+        right[node] = NIL;
+        parent[node] = NIL;
+        setRed(node, false);
+        left[node] = free;
+        free = node;
+    }
+
+    private void grow() {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        red = Arrays.copyOf(red, (capacity + 63) >>> 6);
+    }
+
+    private K key(int node) {
+        return (K) keys[node];
+    }
+
+    private V value(int node) {
+        return (V) values[node];
+    }
+
+    private boolean isRed(int node) {
+        return (red[node >>> 6] & (1L << node)) != 0;
+    }
+
+    private void setRed(int node, boolean isRed) {
+        if (isRed) {
+            red[node >>> 6] |= 1L << node;
+        }
+        else {
+            red[node >>> 6] &= ~(1L << node);
+        }
+    }
+
+    private Entry<K, V> toEntry(int node) {
+        return node == NIL ? null : new Entry<>(key(node), value(node));
+    }
+
+    private int compare(K a, K b) {
+        if (comparator != null) {
+            return comparator.compare(a, b);
+        }
+        return a.compareTo(b);
+    }
+
+    private int findNode(K key) {
+        int current = root;
+        while (current != NIL) {
+            int compare = compare(key, key(current));
+            if (compare > 0) {
+                current = right[current];
+            }
+            else if (compare < 0) {
+                current = left[current];
+            }
+            else {
+                return current;
+            }
+        }
+        return NIL;
+    }
+
+    private int findExisting(K key) throws NoSuchElementException {
+        int node = findNode(key);
+        if (node == NIL) {
+            throw new NoSuchElementException("The key is not in the tree");
+        }
+        return node;
+    }
+
+    private int nearest(K key, boolean higher, boolean inclusive) {
+        int current = root;
+        int candidate = NIL;
+
+        while (current != NIL) {
+            int compare = compare(key, key(current));
+            if (compare == 0 && inclusive) {
+                return current;
+            }
+            if (higher) {
+                if (compare < 0) {
+                    candidate = current;
+                    current = left[current];
+                }
+                else {
+                    current = right[current];
+                }
+            }
+            else {
+                if (compare > 0) {
+                    candidate = current;
+                    current = right[current];
+                }
+                else {
+                    current = left[current];
+                }
+            }
+        }
+        return candidate;
+    }
+
+    private int min(int node) {
+        while (left[node] != NIL) {
+            node = left[node];
+        }
+        return node;
+    }
+
+    private int successor(int node) {
+        if (right[node] != NIL) {
+            return min(right[node]);
+        }
+        int up = parent[node];
+        while (up != NIL && node == right[up]) {
+            node = up;
+            up = parent[up];
+        }
+        return up;
+    }
+
+    private void leftRotate(int node) {
+        int child = right[node];
+        right[node] = left[child];
+        if (left[child] != NIL) {
+            parent[left[child]] = node;
+        }
+        parent[child] = parent[node];
+        if (parent[node] == NIL) {
+            root = child;
+        }
+        else if (node == left[parent[node]]) {
+            left[parent[node]] = child;
+        }
+        else {
+            right[parent[node]] = child;
+        }
+        left[child] = node;
+        parent[node] = child;
+    }
+
+    private void rightRotate(int node) {
+        int child = left[node];
+        left[node] = right[child];
+        if (right[child] != NIL) {
+            parent[right[child]] = node;
+        }
+        parent[child] = parent[node];
+        if (parent[node] == NIL) {
+            root = child;
+        }
+        else if (node == right[parent[node]]) {
+            right[parent[node]] = child;
+        }
+        else {
+            left[parent[node]] = child;
+        }
+        right[child] = node;
+        parent[node] = child;
+    }
+
+    private void insertFixup(int node) {
+        while (isRed(parent[node])) {
+            int grandParent = parent[parent[node]];
+            if (parent[node] == left[grandParent]) {
+                int uncle = right[grandParent];
+                if (isRed(uncle)) {
+                    setRed(parent[node], false);
+                    setRed(uncle, false);
+                    setRed(grandParent, true);
+                    node = grandParent;
+                }
+                else {
+                    if (node == right[parent[node]]) {
+                        node = parent[node];
+                        leftRotate(node);
+                    }
+                    setRed(parent[node], false);
+                    setRed(parent[parent[node]], true);
+                    rightRotate(parent[parent[node]]);
+                }
+            }
+            else {
+                int uncle = left[grandParent];
+                if (isRed(uncle)) {
+                    setRed(parent[node], false);
+                    setRed(uncle, false);
+                    setRed(grandParent, true);
+                    node = grandParent;
+                }
+                else {
+                    if (node == left[parent[node]]) {
+                        node = parent[node];
+                        rightRotate(node);
+                    }
+                    setRed(parent[node], false);
+                    setRed(parent[parent[node]], true);
+                    leftRotate(parent[parent[node]]);
+                }
+            }
+        }
+        setRed(root, false);
+    }
+
+    private void transplant(int oldNode, int newNode) {
+        if (parent[oldNode] == NIL) {
+            root = newNode;
+        }
+        else if (oldNode == left[parent[oldNode]]) {
+            left[parent[oldNode]] = newNode;
+        }
+        else {
+            right[parent[oldNode]] = newNode;
+        }
+        parent[newNode] = parent[oldNode];
+    }
+
+    private void deleteNode(int node) {
+        int moved = node;
+        boolean movedRed = isRed(moved);
+        int replacement;
+
+        if (left[node] == NIL) {
+            replacement = right[node];
+            transplant(node, right[node]);
+        }
+        else if (right[node] == NIL) {
+            replacement = left[node];
+            transplant(node, left[node]);
+        }
+        else {
+            moved = min(right[node]);
+            movedRed = isRed(moved);
+            replacement = right[moved];
+            if (parent[moved] == node) {
+                parent[replacement] = moved;
+            }
+            else {
+                transplant(moved, right[moved]);
+                right[moved] = right[node];
+                parent[right[moved]] = moved;
+            }
+            transplant(node, moved);
+            left[moved] = left[node];
+            parent[left[moved]] = moved;
+            setRed(moved, isRed(node));
+        }
+
+        if (!movedRed) {
+            deleteFixup(replacement);
+        }
+
+        parent[NIL] = NIL;
+        release(node);
+        size--;
+        modCount++;
+    }
+
+    private void deleteFixup(int node) {
+        while (node != root && !isRed(node)) {
+            if (node == left[parent[node]]) {
+                int sibling = right[parent[node]];
+                if (isRed(sibling)) {
+                    setRed(sibling, false);
+                    setRed(parent[node], true);
+                    leftRotate(parent[node]);
+                    sibling = right[parent[node]];
+                }
+                if (!isRed(left[sibling]) && !isRed(right[sibling])) {
+                    setRed(sibling, true);
+                    node = parent[node];
+                }
+                else {
+                    if (!isRed(right[sibling])) {
+                        setRed(left[sibling], false);
+                        setRed(sibling, true);
+                        rightRotate(sibling);
+                        sibling = right[parent[node]];
+                    }
+                    setRed(sibling, isRed(parent[node]));
+                    setRed(parent[node], false);
+                    setRed(right[sibling], false);
+                    leftRotate(parent[node]);
+                    node = root;
+                }
+            }
+            else {
+                int sibling = left[parent[node]];
+                if (isRed(sibling)) {
+                    setRed(sibling, false);
+                    setRed(parent[node], true);
+                    rightRotate(parent[node]);
+                    sibling = left[parent[node]];
+                }
+                if (!isRed(right[sibling]) && !isRed(left[sibling])) {
+                    setRed(sibling, true);
+                    node = parent[node];
+                }
+                else {
+                    if (!isRed(left[sibling])) {
+                        setRed(right[sibling], false);
+                        setRed(sibling, true);
+                        leftRotate(sibling);
+                        sibling = left[parent[node]];
+                    }
+                    setRed(sibling, isRed(parent[node]));
+                    setRed(parent[node], false);
+                    setRed(left[sibling], false);
+                    rightRotate(parent[node]);
+                    node = root;
+                }
+            }
+        }
+        setRed(node, false);
+    }
+
+    /**
+     * In-order iterator over node indices that fails fast on modification.
+     */
+    private abstract class NodeIterator<T> implements Iterator<T> {
+        private int next = root == NIL ? NIL : min(root);
+        private final int expectedModCount = modCount;
+
+        public boolean hasNext() {
+            return next != NIL;
+        }
+
+        int nextNode() {
+            if (next == NIL) {
+                throw new NoSuchElementException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            int node = next;
+            next = successor(next);
+            return node;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+import fj.test.Property;
+import fj.test.runner.PropertyTestRunner;
+import org.junit.runner.RunWith;
+
+@RunWith(PropertyTestRunner.class)
+public class ArraySortedTreeMapTest {
+
+    /**
+     * Check ArraySortedTreeMap against java.util.TreeMap on random operations.
+     */
+    public Property behaves_like_tree_map() {
+        return SortedTreeMapTest.behavesLikeTreeMap(ArraySortedTreeMap::new);
+    }
+
+    /**
+     * Same as above, but starting from the smallest capacity so the arrays grow and
+     * freed slots are reused.
+     */
+    public Property behaves_like_tree_map_when_growing() {
+        return SortedTreeMapTest.behavesLikeTreeMap(() -> new ArraySortedTreeMap<>(0, null));
+    }
+}
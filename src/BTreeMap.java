@@ -0,0 +1,749 @@
+/**
+ * Sorted map stored as a B+tree.
+ */
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+
+/**
+ * A B+tree implementation of ISortedTreeMap. Every node holds a sorted array of up to
+ * order keys, so a lookup touches one node per level and searches it with a binary
+ * search over adjacent memory, instead of taking one cache miss per binary node. All
+ * entries are in the leaves, and the leaves are linked in key order, so keys(),
+ * entries() and range scans read the leaves sequentially.
+ *
+ * Inner nodes hold separator keys: child i+1 holds the keys that are higher than or
+ * equal to separator i. Nodes other than the root never hold fewer than order / 2 keys
+ * after an add or remove.
+ *
+ * Entries returned by this map are copies of the key and value. Setting the value of a
+ * returned entry does not change the map.
+ */
+public class BTreeMap<K extends Comparable<? super K>, V> implements ISortedTreeMap<K, V> {
+    private static final int DEFAULT_ORDER = 64;
+
+    private final int order;
+    private final int minKeys;
+    private final Comparator<K> comparator;
+    private Node root;
+    private Leaf first;
+    private int size;
+    private int modCount;
+
+    // Results passed up from the recursive add and remove.
+    private Object splitKey;
+    private V oldValue;
+
+    private abstract static class Node {
+        final Object[] keys;
+        int count;
+
+        Node(int order) {
+            keys = new Object[order];
+        }
+    }
+
+    private static final class Leaf extends Node {
+        final Object[] values;
+        Leaf next;
+        Leaf previous;
+
+        Leaf(int order) {
+            super(order);
+            values = new Object[order];
+        }
+    }
+
+    private static final class Inner extends Node {
+        final Node[] children;
+
+        Inner(int order) {
+            super(order);
+            children = new Node[order + 1];
+        }
+    }
+
+    /**
+     * @param order The highest number of keys in a node, at least 4
+     * @param kComparator Ordering of the keys, or null for their natural ordering
+     */
+    public BTreeMap(int order, Comparator<K> kComparator) {
+        if (order < 4) {
+            throw new IllegalArgumentException("The order must be at least 4, was " + order);
+        }
+        this.order = order;
+        this.minKeys = order / 2;
+        this.comparator = kComparator;
+        clear();
+    }
+
+    public BTreeMap(Comparator<K> kComparator) {
+        this(DEFAULT_ORDER, kComparator);
+    }
+
+    public BTreeMap() {
+        this(DEFAULT_ORDER, null);
+    }
+
+    public Entry<K, V> min() {
+        return size == 0 ? null : entry(first, 0);
+    }
+
+    public Entry<K, V> max() {
+        if (size == 0) {
+            return null;
+        }
+        Node node = root;
+        while (node instanceof Inner) {
+            node = ((Inner) node).children[node.count];
+        }
+        return entry((Leaf) node, node.count - 1);
+    }
+
+    public V add(K key, V value) {
+        oldValue = null;
+        Node split = insert(root, key, value);
+        if (split != null) {
+            Inner newRoot = new Inner(order);
+            newRoot.keys[0] = splitKey;
+            newRoot.children[0] = root;
+            newRoot.children[1] = split;
+            newRoot.count = 1;
+            root = newRoot;
+        }
+        V previous = oldValue;
+        oldValue = null;
+        splitKey = null;
+        return previous;
+    }
+
+    public V add(Entry<K, V> entry) {
+        return add(entry.key, entry.value);
+    }
+
+    public void replace(K key, V value) throws NoSuchElementException {
+        Leaf leaf = findLeaf(key);
+        leaf.values[findExisting(leaf, key)] = value;
+    }
+
+    public void replace(K key, BiFunction<K, V, V> f) throws NoSuchElementException {
+        Leaf leaf = findLeaf(key);
+        int i = findExisting(leaf, key);
+        leaf.values[i] = f.apply((K) leaf.keys[i], (V) leaf.values[i]);
+    }
+
+    public V remove(Object key) throws NoSuchElementException {
+        if (!delete(root, (K) key)) {
+            throw new NoSuchElementException("The key is not in the tree");
+        }
+        if (root instanceof Inner && root.count == 0) {
+            root = ((Inner) root).children[0];
+        }
+        V removed = oldValue;
+        oldValue = null;
+        return removed;
+    }
+
+    public V getValue(Object key) throws NoSuchElementException {
+        Leaf leaf = findLeaf((K) key);
+        return (V) leaf.values[findExisting(leaf, (K) key)];
+    }
+
+    public boolean containsKey(K key) {
+        return search(findLeaf(key), key) >= 0;
+    }
+
+    public boolean containsValue(V value) {
+        for (Leaf leaf = first; leaf != null; leaf = leaf.next) {
+            for (int i = 0; i < leaf.count; i++) {
+                if (leaf.values[i].equals(value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public Iterable<K> keys() {
+        return () -> new LeafIterator<K>() {
+            public K next() {
+                advance();
+                return (K) leaf.keys[index];
+            }
+        };
+    }
+
+    public Iterable<V> values() {
+        return () -> new LeafIterator<V>() {
+            public V next() {
+                advance();
+                return (V) leaf.values[index];
+            }
+        };
+    }
+
+    public Iterable<Entry<K, V>> entries() {
+        return () -> new LeafIterator<Entry<K, V>>() {
+            public Entry<K, V> next() {
+                advance();
+                return entry(leaf, index);
+            }
+        };
+    }
+
+    public Entry<K, V> higherOrEqualEntry(K key) {
+        return higher(key, true);
+    }
+
+    public Entry<K, V> lowerOrEqualEntry(K key) {
+        return lower(key, true);
+    }
+
+    public Entry<K, V> higherEntry(K key) {
+        return higher(key, false);
+    }
+
+    public Entry<K, V> lowerEntry(K key) {
+        return lower(key, false);
+    }
+
+    public ISortedTreeMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return new SubMap<>(this, comparator, fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    public ISortedTreeMap<K, V> headMap(K toKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, null, false, toKey, inclusive);
+    }
+
+    public ISortedTreeMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, fromKey, inclusive, null, false);
+    }
+
+    /**
+     * Adds all entries in the other map. Both maps are streamed in key order and the
+     * result is packed into new leaves in O(n + m). If a key is present in both maps,
+     * the value in the other map takes precedent.
+     * @param other The map to add to the current map.
+     */
+    public void merge(ISortedTreeMap<K, V> other) {
+        if (other == this || other.isEmpty()) {
+            return;
+        }
+        int capacity = size + other.size();
+        Object[] keys = new Object[capacity];
+        Object[] values = new Object[capacity];
+        int count = 0;
+
+        Leaf leaf = first;
+        int i = 0;
+        for (Entry<K, V> entry : other.entries()) {
+            // Copy our entries with lower keys, and skip the one the other map replaces.
+            while (leaf != null) {
+                if (i == leaf.count) {
+                    leaf = leaf.next;
+                    i = 0;
+                    continue;
+                }
+                int compare = compare((K) leaf.keys[i], entry.key);
+                if (compare > 0) {
+                    break;
+                }
+                if (compare < 0) {
+                    keys[count] = leaf.keys[i];
+                    values[count++] = leaf.values[i];
+                }
+                i++;
+            }
+            keys[count] = entry.key;
+            values[count++] = entry.value;
+        }
+        for (; leaf != null; leaf = leaf.next, i = 0) {
+            for (; i < leaf.count; i++) {
+                keys[count] = leaf.keys[i];
+                values[count++] = leaf.values[i];
+            }
+        }
+        build(keys, values, count);
+    }
+
+    /**
+     * Removes any entry for which the predicate holds true. The predicate is tested
+     * once per entry, in key order. When many entries match, the survivors are packed
+     * into new leaves instead of being removed one by one.
+     * @param p The predicate that tests which entries should be removed.
+     */
+    public void removeIf(BiPredicate<K, V> p) {
+        Object[] keys = new Object[size];
+        Object[] values = new Object[size];
+        int kept = 0;
+        ArrayList<K> doomed = new ArrayList<>();
+
+        for (Leaf leaf = first; leaf != null; leaf = leaf.next) {
+            for (int i = 0; i < leaf.count; i++) {
+                if (p.test((K) leaf.keys[i], (V) leaf.values[i])) {
+                    doomed.add((K) leaf.keys[i]);
+                }
+                else {
+                    keys[kept] = leaf.keys[i];
+                    values[kept++] = leaf.values[i];
+                }
+            }
+        }
+        if (doomed.isEmpty()) {
+            return;
+        }
+        int depth = 32 - Integer.numberOfLeadingZeros(size);
+        if ((long) doomed.size() * depth < size) {
+            for (K key : doomed) {
+                remove(key);
+            }
+        }
+        else {
+            build(keys, values, kept);
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        first = new Leaf(order);
+        root = first;
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Inserts into the subtree at node.
+     * @return the new right sibling of node if it had to split, with its lowest key
+     * in splitKey, or null
+     */
+    private Node insert(Node node, K key, V value) {
+        if (node instanceof Leaf) {
+            return insertIntoLeaf((Leaf) node, key, value);
+        }
+        Inner inner = (Inner) node;
+        int child = childIndex(inner, key);
+        Node split = insert(inner.children[child], key, value);
+        if (split == null) {
+            return null;
+        }
+        if (inner.count < order) {
+            insertChild(inner, child, splitKey, split);
+            return null;
+        }
+
+        // Split around the middle of the order + 1 keys the node would have.
+        Object[] keys = new Object[order + 1];
+        Node[] children = new Node[order + 2];
+        System.arraycopy(inner.keys, 0, keys, 0, child);
+        keys[child] = splitKey;
+        System.arraycopy(inner.keys, child, keys, child + 1, order - child);
+        System.arraycopy(inner.children, 0, children, 0, child + 1);
+        children[child + 1] = split;
+        System.arraycopy(inner.children, child + 1, children, child + 2, order - child);
+
+        int mid = (order + 1) / 2;
+        Inner right = new Inner(order);
+        System.arraycopy(keys, 0, inner.keys, 0, mid);
+        System.arraycopy(children, 0, inner.children, 0, mid + 1);
+        clear(inner.keys, mid, order);
+        clear(inner.children, mid + 1, order + 1);
+        inner.count = mid;
+        System.arraycopy(keys, mid + 1, right.keys, 0, order - mid);
+        System.arraycopy(children, mid + 1, right.children, 0, order - mid + 1);
+        right.count = order - mid;
+        splitKey = keys[mid];
+        return right;
+    }
+
+    private Leaf insertIntoLeaf(Leaf leaf, K key, V value) {
+        int i = search(leaf, key);
+        if (i >= 0) {
+            oldValue = (V) leaf.values[i];
+            leaf.values[i] = value;
+            return null;
+        }
+        i = -i - 1;
+        size++;
+        modCount++;
+        if (leaf.count < order) {
+            insertAt(leaf, i, key, value);
+            return null;
+        }
+
+        // The left leaf keeps half of the order + 1 entries.
+        int half = (order + 1) / 2;
+        Leaf right = new Leaf(order);
+        if (i < half) {
+            moveTail(leaf, half - 1, right);
+            insertAt(leaf, i, key, value);
+        }
+        else {
+            moveTail(leaf, half, right);
+            insertAt(right, i - half, key, value);
+        }
+        right.next = leaf.next;
+        if (right.next != null) {
+            right.next.previous = right;
+        }
+        right.previous = leaf;
+        leaf.next = right;
+        splitKey = right.keys[0];
+        return right;
+    }
+
+    /**
+     * Removes the key from the subtree at node, rebalancing underfull children.
+     * @return true if the key was found, with its value in oldValue
+     */
+    private boolean delete(Node node, K key) {
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            int i = search(leaf, key);
+            if (i < 0) {
+                return false;
+            }
+            oldValue = (V) leaf.values[i];
+            removeAt(leaf, i);
+            size--;
+            modCount++;
+            return true;
+        }
+        Inner inner = (Inner) node;
+        int child = childIndex(inner, key);
+        if (!delete(inner.children[child], key)) {
+            return false;
+        }
+        if (inner.children[child].count < minKeys) {
+            rebalance(inner, child);
+        }
+        return true;
+    }
+
+    /**
+     * Refills the underfull child by borrowing from a sibling, or merges it with one.
+     */
+    private void rebalance(Inner parent, int child) {
+        Node left = child > 0 ? parent.children[child - 1] : null;
+        Node right = child < parent.count ? parent.children[child + 1] : null;
+
+        if (left != null && left.count > minKeys) {
+            borrowFromLeft(parent, child);
+        }
+        else if (right != null && right.count > minKeys) {
+            borrowFromRight(parent, child);
+        }
+        else if (left != null) {
+            mergeChildren(parent, child - 1);
+        }
+        else if (right != null) {
+            mergeChildren(parent, child);
+        }
+    }
+
+    private void borrowFromLeft(Inner parent, int child) {
+        Node node = parent.children[child];
+        Node left = parent.children[child - 1];
+        System.arraycopy(node.keys, 0, node.keys, 1, node.count);
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            System.arraycopy(leaf.values, 0, leaf.values, 1, leaf.count);
+            leaf.keys[0] = left.keys[left.count - 1];
+            leaf.values[0] = ((Leaf) left).values[left.count - 1];
+            ((Leaf) left).values[left.count - 1] = null;
+            parent.keys[child - 1] = leaf.keys[0];
+        }
+        else {
+            Inner inner = (Inner) node;
+            Inner leftInner = (Inner) left;
+            System.arraycopy(inner.children, 0, inner.children, 1, inner.count + 1);
+            inner.keys[0] = parent.keys[child - 1];
+            inner.children[0] = leftInner.children[left.count];
+            leftInner.children[left.count] = null;
+            parent.keys[child - 1] = left.keys[left.count - 1];
+        }
+        left.keys[left.count - 1] = null;
+        left.count--;
+        node.count++;
+    }
+
+    private void borrowFromRight(Inner parent, int child) {
+        Node node = parent.children[child];
+        Node right = parent.children[child + 1];
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            Leaf rightLeaf = (Leaf) right;
+            leaf.keys[leaf.count] = rightLeaf.keys[0];
+            leaf.values[leaf.count] = rightLeaf.values[0];
+            removeAt(rightLeaf, 0);
+            parent.keys[child] = rightLeaf.keys[0];
+        }
+        else {
+            Inner inner = (Inner) node;
+            Inner rightInner = (Inner) right;
+            inner.keys[inner.count] = parent.keys[child];
+            inner.children[inner.count + 1] = rightInner.children[0];
+            parent.keys[child] = rightInner.keys[0];
+            System.arraycopy(rightInner.keys, 1, rightInner.keys, 0, right.count - 1);
+            System.arraycopy(rightInner.children, 1, rightInner.children, 0, right.count);
+            rightInner.keys[right.count - 1] = null;
+            rightInner.children[right.count] = null;
+            right.count--;
+        }
+        node.count++;
+    }
+
+    /**
+     * Moves everything in child i + 1 into child i and drops child i + 1.
+     */
+    private void mergeChildren(Inner parent, int i) {
+        Node left = parent.children[i];
+        Node right = parent.children[i + 1];
+        if (left instanceof Leaf) {
+            Leaf leftLeaf = (Leaf) left;
+            Leaf rightLeaf = (Leaf) right;
+            System.arraycopy(rightLeaf.keys, 0, leftLeaf.keys, left.count, right.count);
+            System.arraycopy(rightLeaf.values, 0, leftLeaf.values, left.count, right.count);
+            left.count += right.count;
+            leftLeaf.next = rightLeaf.next;
+            if (leftLeaf.next != null) {
+                leftLeaf.next.previous = leftLeaf;
+            }
+        }
+        else {
+            Inner leftInner = (Inner) left;
+            Inner rightInner = (Inner) right;
+            left.keys[left.count] = parent.keys[i];
+            System.arraycopy(rightInner.keys, 0, leftInner.keys, left.count + 1, right.count);
+            System.arraycopy(rightInner.children, 0, leftInner.children, left.count + 1, right.count + 1);
+            left.count += right.count + 1;
+        }
+        System.arraycopy(parent.keys, i + 1, parent.keys, i, parent.count - i - 1);
+        System.arraycopy(parent.children, i + 2, parent.children, i + 1, parent.count - i - 1);
+        parent.keys[parent.count - 1] = null;
+        parent.children[parent.count] = null;
+        parent.count--;
+    }
+
+    /**
+     * Replaces the contents of the map with packed leaves built from sorted entries,
+     * and the inner levels above them, in linear time.
+     */
+    private void build(Object[] keys, Object[] values, int count) {
+        if (count == 0) {
+            clear();
+            return;
+        }
+        // Spread the entries evenly, so that no leaf but a lone root is underfull.
+        int leaves = (count + order - 1) / order;
+        Node[] level = new Node[leaves];
+        Object[] lowest = new Object[leaves];
+        Leaf previous = null;
+        int from = 0;
+        for (int j = 0; j < leaves; j++) {
+            Leaf leaf = new Leaf(order);
+            leaf.count = count / leaves + (j < count % leaves ? 1 : 0);
+            System.arraycopy(keys, from, leaf.keys, 0, leaf.count);
+            System.arraycopy(values, from, leaf.values, 0, leaf.count);
+            from += leaf.count;
+            leaf.previous = previous;
+            if (previous != null) {
+                previous.next = leaf;
+            }
+            previous = leaf;
+            level[j] = leaf;
+            lowest[j] = leaf.keys[0];
+        }
+        first = (Leaf) level[0];
+
+        while (level.length > 1) {
+            int parents = (level.length + order) / (order + 1);
+            Node[] above = new Node[parents];
+            Object[] aboveLowest = new Object[parents];
+            int next = 0;
+            for (int j = 0; j < parents; j++) {
+                Inner inner = new Inner(order);
+                int children = level.length / parents + (j < level.length % parents ? 1 : 0);
+                aboveLowest[j] = lowest[next];
+                for (int c = 0; c < children; c++, next++) {
+                    inner.children[c] = level[next];
+                    if (c > 0) {
+                        inner.keys[c - 1] = lowest[next];
+                    }
+                }
+                inner.count = children - 1;
+                above[j] = inner;
+            }
+            level = above;
+            lowest = aboveLowest;
+        }
+        root = level[0];
+        size = count;
+        modCount++;
+    }
+
+    private Entry<K, V> higher(K key, boolean inclusive) {
+        Leaf leaf = findLeaf(key);
+        int i = search(leaf, key);
+        int position = i >= 0 ? (inclusive ? i : i + 1) : -i - 1;
+        // Separators can be stale after removes, so the answer may be in the next leaf.
+        while (leaf != null && position >= leaf.count) {
+            leaf = leaf.next;
+            position = 0;
+        }
+        return leaf == null ? null : entry(leaf, position);
+    }
+
+    private Entry<K, V> lower(K key, boolean inclusive) {
+        Leaf leaf = findLeaf(key);
+        int i = search(leaf, key);
+        int position = i >= 0 ? (inclusive ? i : i - 1) : -i - 2;
+        while (leaf != null && position < 0) {
+            leaf = leaf.previous;
+            position = leaf == null ? -1 : leaf.count - 1;
+        }
+        return leaf == null ? null : entry(leaf, position);
+    }
+
+    private Leaf findLeaf(K key) {
+        Node node = root;
+        while (node instanceof Inner) {
+            node = ((Inner) node).children[childIndex((Inner) node, key)];
+        }
+        return (Leaf) node;
+    }
+
+    private int findExisting(Leaf leaf, K key) throws NoSuchElementException {
+        int i = search(leaf, key);
+        if (i < 0) {
+            throw new NoSuchElementException("The key is not in the tree");
+        }
+        return i;
+    }
+
+    /**
+     * @return the index of the child whose subtree holds the key
+     */
+    private int childIndex(Inner inner, K key) {
+        int i = search(inner, key);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    /**
+     * Binary search among the keys of the node.
+     * @return index of the key, or -(insertion point) - 1 if it is not there
+     */
+    private int search(Node node, K key) {
+        int lo = 0;
+        int hi = node.count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int compare = compare((K) node.keys[mid], key);
+            if (compare < 0) {
+                lo = mid + 1;
+            }
+            else if (compare > 0) {
+                hi = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private void insertAt(Leaf leaf, int i, K key, V value) {
+        System.arraycopy(leaf.keys, i, leaf.keys, i + 1, leaf.count - i);
+        System.arraycopy(leaf.values, i, leaf.values, i + 1, leaf.count - i);
+        leaf.keys[i] = key;
+        leaf.values[i] = value;
+        leaf.count++;
+    }
+
+    private void removeAt(Leaf leaf, int i) {
+        System.arraycopy(leaf.keys, i + 1, leaf.keys, i, leaf.count - i - 1);
+        System.arraycopy(leaf.values, i + 1, leaf.values, i, leaf.count - i - 1);
+        leaf.count--;
+        leaf.keys[leaf.count] = null;
+        leaf.values[leaf.count] = null;
+    }
+
+    /**
+     * Moves the entries from index from to the end of the leaf into the empty leaf to.
+     */
+    private void moveTail(Leaf leaf, int from, Leaf to) {
+        int moved = leaf.count - from;
+        System.arraycopy(leaf.keys, from, to.keys, 0, moved);
+        System.arraycopy(leaf.values, from, to.values, 0, moved);
+        clear(leaf.keys, from, leaf.count);
+        clear(leaf.values, from, leaf.count);
+        to.count = moved;
+        leaf.count = from;
+    }
+
+    private void insertChild(Inner inner, int child, Object key, Node node) {
+        System.arraycopy(inner.keys, child, inner.keys, child + 1, inner.count - child);
+        System.arraycopy(inner.children, child + 1, inner.children, child + 2, inner.count - child);
+        inner.keys[child] = key;
+        inner.children[child + 1] = node;
+        inner.count++;
+    }
+
+    private static void clear(Object[] array, int from, int to) {
+        for (int i = from; i < to; i++) {
+            array[i] = null;
+        }
+    }
+
+    private Entry<K, V> entry(Leaf leaf, int i) {
+        return new Entry<>((K) leaf.keys[i], (V) leaf.values[i]);
+    }
+
+    private int compare(K a, K b) {
+        if (comparator != null) {
+            return comparator.compare(a, b);
+        }
+        return a.compareTo(b);
+    }
+
+    /**
+     * Walks the linked leaves in order and fails fast on modification.
+     */
+    private abstract class LeafIterator<T> implements Iterator<T> {
+        Leaf leaf = first;
+        int index = -1;
+        private final int expectedModCount = modCount;
+
+        public boolean hasNext() {
+            return size > 0 && (index + 1 < leaf.count || leaf.next != null);
+        }
+
+        /**
+         * Moves to the next entry, leaving it at leaf.keys[index].
+         */
+        void advance() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            index++;
+            if (index == leaf.count) {
+                leaf = leaf.next;
+                index = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+import fj.test.Property;
+import fj.test.runner.PropertyTestRunner;
+import org.junit.runner.RunWith;
+
+@RunWith(PropertyTestRunner.class)
+public class BTreeMapTest {
+
+    /**
+     * Check BTreeMap against java.util.TreeMap on random operations, with the smallest
+     * order so that nodes split, borrow and merge often.
+     */
+    public Property behaves_like_tree_map() {
+        return SortedTreeMapTest.behavesLikeTreeMap(() -> new BTreeMap<>(4, null));
+    }
+
+    /**
+     * Same as above, with the default order.
+     */
+    public Property behaves_like_tree_map_with_default_order() {
+        return SortedTreeMapTest.behavesLikeTreeMap(BTreeMap::new);
+    }
+}
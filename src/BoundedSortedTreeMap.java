@@ -0,0 +1,414 @@
+/**
+ * Sorted map with a bounded size that evicts entries to stay within it.
+ */
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * Wraps an ISortedTreeMap so that it never holds more than a number of entries, or
+ * more than a number of estimated bytes, for use as a cache. When a write takes the
+ * map over either bound, entries are evicted one at a time, chosen by the
+ * EvictionPolicy, until it is within both again. The entry just written can be evicted
+ * too, if the policy picks it.
+ *
+ * Every eviction costs O(log n) or less, and no eviction scans the map. This map
+ * tracks the use and estimated bytes of every key in a tree next to the wrapped map,
+ * ordered the same way, so the keys need nothing beyond that ordering. A key is used
+ * when it is written, and when its value is read through getValue.
+ *
+ * The evicted entries are passed to the eviction listener, which must not change the
+ * map. The map counts evictions, and hits and misses of getValue. It is not
+ * thread-safe, and since reads update the usage, it must not be read from several
+ * threads at once either. The wrapped map must not be used directly while it is
+ * wrapped.
+ */
+public class BoundedSortedTreeMap<K extends Comparable<? super K>, V> implements ISortedTreeMap<K, V> {
+
+    /**
+     * Which entry to evict when the map is over its bounds.
+     */
+    public enum EvictionPolicy {
+        LOWEST_KEY,
+        HIGHEST_KEY,
+        LEAST_RECENTLY_USED,
+        /**
+         * The entry used the fewest times, and of those, the one used least recently.
+         */
+        LEAST_FREQUENTLY_USED
+    }
+
+    /**
+     * What is known about the use of a key in the map.
+     */
+    private static final class Usage<K> {
+        final K key;
+        long weight;
+        long count;
+        long tick;
+
+        Usage(K key) {
+            this.key = key;
+        }
+    }
+
+    private final ISortedTreeMap<K, V> map;
+    private final Comparator<K> comparator;
+    private final EvictionPolicy policy;
+    private final long maxEntries;
+    private final long maxBytes;
+    private final ToLongBiFunction<? super K, ? super V> weigher;
+    // Ordered like the wrapped map, so that it holds exactly the keys the map holds.
+    private final TreeMap<K, Usage<K>> usage;
+    // In the order of the policy, first to be evicted first. Only kept for
+    // LEAST_RECENTLY_USED and LEAST_FREQUENTLY_USED.
+    private final TreeSet<Usage<K>> byUse;
+    private BiConsumer<? super K, ? super V> listener = (key, value) -> { };
+    private long clock;
+    private long bytes;
+    private long evictions;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param map         The map to bound, which should be empty
+     * @param kComparator The ordering of the map, or null for natural ordering
+     * @param policy      Which entries to evict
+     * @param maxEntries  The most entries the map may hold
+     * @param maxBytes    The most estimated bytes the map may hold
+     * @param weigher     Estimate of the bytes an entry takes, or null to count
+     *                    nothing but entries
+     */
+    public BoundedSortedTreeMap(ISortedTreeMap<K, V> map, Comparator<K> kComparator, EvictionPolicy policy,
+                                long maxEntries, long maxBytes, ToLongBiFunction<? super K, ? super V> weigher) {
+        if (maxEntries < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("The bounds must not be negative");
+        }
+        this.map = map;
+        this.comparator = kComparator;
+        this.policy = policy;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+        this.usage = new TreeMap<>(kComparator);
+        switch (policy) {
+            case LEAST_RECENTLY_USED:
+                this.byUse = new TreeSet<>(Comparator.comparingLong(u -> u.tick));
+                break;
+            case LEAST_FREQUENTLY_USED:
+                this.byUse = new TreeSet<>(Comparator.<Usage<K>>comparingLong(u -> u.count)
+                        .thenComparingLong(u -> u.tick));
+                break;
+            default:
+                this.byUse = null;
+        }
+    }
+
+    /**
+     * Bounds a map by the number of entries.
+     */
+    public BoundedSortedTreeMap(ISortedTreeMap<K, V> map, Comparator<K> kComparator, EvictionPolicy policy,
+                                long maxEntries) {
+        this(map, kComparator, policy, maxEntries, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Bounds a map by the estimated bytes of its entries.
+     */
+    public BoundedSortedTreeMap(ISortedTreeMap<K, V> map, Comparator<K> kComparator, EvictionPolicy policy,
+                                long maxBytes, ToLongBiFunction<? super K, ? super V> weigher) {
+        this(map, kComparator, policy, Long.MAX_VALUE, maxBytes, weigher);
+    }
+
+    /**
+     * @param listener Called with the key and value of every evicted entry
+     */
+    public void setEvictionListener(BiConsumer<? super K, ? super V> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return The number of entries evicted so far
+     */
+    public long evictions() {
+        return evictions;
+    }
+
+    /**
+     * @return The number of calls to getValue that found the key
+     */
+    public long hits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of calls to getValue that did not find the key
+     */
+    public long misses() {
+        return misses;
+    }
+
+    /**
+     * @return The estimated bytes of the entries in the map, or 0 without a weigher
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    public Entry<K, V> min() {
+        return map.min();
+    }
+
+    public Entry<K, V> max() {
+        return map.max();
+    }
+
+    public V add(K key, V value) {
+        V previous = map.add(key, value);
+        written(key, value);
+        evict();
+        return previous;
+    }
+
+    public V add(Entry<K, V> entry) {
+        return add(entry.key, entry.value);
+    }
+
+    public void replace(K key, V value) throws NoSuchElementException {
+        map.replace(key, value);
+        written(key, value);
+        evict();
+    }
+
+    public void replace(K key, BiFunction<K, V, V> f) throws NoSuchElementException {
+        map.replace(key, f);
+        written(key, map.getValue(key));
+        evict();
+    }
+
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        return computed(key, map.compute(key, f));
+    }
+
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> f) {
+        return computed(key, map.computeIfAbsent(key, f));
+    }
+
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        return computed(key, map.computeIfPresent(key, f));
+    }
+
+    public V putIfAbsent(K key, V value) {
+        V current = map.putIfAbsent(key, value);
+        written(key, current == null ? value : current);
+        evict();
+        return current;
+    }
+
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> f) {
+        return computed(key, map.merge(key, value, f));
+    }
+
+    public V remove(Object key) throws NoSuchElementException {
+        V value = map.remove(key);
+        forget((K) key);
+        return value;
+    }
+
+    public V getValue(Object key) throws NoSuchElementException {
+        V value;
+        try {
+            value = map.getValue(key);
+        } catch (NoSuchElementException e) {
+            misses++;
+            throw e;
+        }
+        hits++;
+        Usage<K> used = usage.get(key);
+        if (used != null) {
+            touch(used);
+        }
+        return value;
+    }
+
+    public boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    public boolean containsValue(V value) {
+        return map.containsValue(value);
+    }
+
+    public Iterable<K> keys() {
+        return map.keys();
+    }
+
+    public Iterable<V> values() {
+        return map.values();
+    }
+
+    public Iterable<Entry<K, V>> entries() {
+        return map.entries();
+    }
+
+    public Entry<K, V> higherOrEqualEntry(K key) {
+        return map.higherOrEqualEntry(key);
+    }
+
+    public Entry<K, V> lowerOrEqualEntry(K key) {
+        return map.lowerOrEqualEntry(key);
+    }
+
+    public Entry<K, V> higherEntry(K key) {
+        return map.higherEntry(key);
+    }
+
+    public Entry<K, V> lowerEntry(K key) {
+        return map.lowerEntry(key);
+    }
+
+    public ISortedTreeMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return new SubMap<>(this, comparator, fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    public ISortedTreeMap<K, V> headMap(K toKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, null, false, toKey, inclusive);
+    }
+
+    public ISortedTreeMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, fromKey, inclusive, null, false);
+    }
+
+    /**
+     * Adds all entries in the other map, as used in the order of the other map, and
+     * then evicts until the map is within its bounds.
+     * @param other The map to add to the current map.
+     */
+    public void merge(ISortedTreeMap<K, V> other) {
+        if (other == this) {
+            return;
+        }
+        map.merge(other);
+        for (Entry<K, V> entry : other.entries()) {
+            written(entry.key, entry.value);
+        }
+        evict();
+    }
+
+    public void removeIf(BiPredicate<K, V> p) {
+        List<K> removed = new ArrayList<>();
+        map.removeIf((key, value) -> {
+            if (p.test(key, value)) {
+                removed.add(key);
+                return true;
+            }
+            return false;
+        });
+        for (K key : removed) {
+            forget(key);
+        }
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public void clear() {
+        map.clear();
+        usage.clear();
+        if (byUse != null) {
+            byUse.clear();
+        }
+        bytes = 0;
+    }
+
+    /**
+     * Records a use of the key, which now maps to the value.
+     */
+    private void written(K key, V value) {
+        Usage<K> used = usage.get(key);
+        if (used == null) {
+            used = new Usage<>(key);
+            usage.put(key, used);
+        }
+        else {
+            bytes -= used.weight;
+        }
+        used.weight = weigher == null ? 0 : weigher.applyAsLong(key, value);
+        bytes += used.weight;
+        touch(used);
+    }
+
+    /**
+     * Records the result of a compute: a new value for the key, or that it is gone.
+     */
+    private V computed(K key, V value) {
+        if (value == null) {
+            forget(key);
+        }
+        else {
+            written(key, value);
+            evict();
+        }
+        return value;
+    }
+
+    private void touch(Usage<K> used) {
+        if (byUse != null) {
+            byUse.remove(used);
+        }
+        used.count++;
+        used.tick = ++clock;
+        if (byUse != null) {
+            byUse.add(used);
+        }
+    }
+
+    private void forget(K key) {
+        Usage<K> used = usage.remove(key);
+        if (used == null) {
+            return;
+        }
+        bytes -= used.weight;
+        if (byUse != null) {
+            byUse.remove(used);
+        }
+    }
+
+    /**
+     * Evicts entries, as chosen by the policy, until the map is within its bounds.
+     */
+    private void evict() {
+        while ((map.size() > maxEntries || bytes > maxBytes) && !map.isEmpty()) {
+            K victim = victim();
+            V value = map.remove(victim);
+            forget(victim);
+            evictions++;
+            listener.accept(victim, value);
+        }
+    }
+
+    private K victim() {
+        switch (policy) {
+            case LOWEST_KEY:
+                return map.min().key;
+            case HIGHEST_KEY:
+                return map.max().key;
+            default:
+                return byUse.first().key;
+        }
+    }
+}
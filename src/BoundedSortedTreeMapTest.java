@@ -0,0 +1,163 @@
+import fj.test.Property;
+import fj.test.runner.PropertyTestRunner;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static fj.test.Arbitrary.*;
+import static fj.test.Property.*;
+
+@RunWith(PropertyTestRunner.class)
+public class BoundedSortedTreeMapTest {
+
+    /**
+     * Check BoundedSortedTreeMap, with bounds it never reaches, against java.util.TreeMap
+     * on random operations.
+     */
+    public Property behaves_like_tree_map() {
+        return SortedTreeMapTest.behavesLikeTreeMap(() -> new BoundedSortedTreeMap<Integer, String>(
+                new SortedTreeMap<>(), null, BoundedSortedTreeMap.EvictionPolicy.LEAST_FREQUENTLY_USED,
+                Integer.MAX_VALUE, Long.MAX_VALUE, (key, value) -> value.length()));
+    }
+
+    /**
+     * Check every policy against a model that finds the entry to evict by scanning all
+     * entries, on random adds and reads, and that the listener and counters see every
+     * eviction.
+     */
+    public Property evicts_by_policy() {
+        return property(arbLong, seed -> {
+            boolean same = true;
+            for (BoundedSortedTreeMap.EvictionPolicy policy : BoundedSortedTreeMap.EvictionPolicy.values()) {
+                Random random = new Random(seed);
+                int maxEntries = 1 + random.nextInt(20);
+                BoundedSortedTreeMap<Integer, String> tm =
+                        new BoundedSortedTreeMap<>(new SortedTreeMap<Integer, String>(), null, policy, maxEntries);
+                List<Integer> evicted = new ArrayList<>();
+                tm.setEvictionListener((key, value) -> evicted.add(key));
+
+                TreeMap<Integer, String> model = new TreeMap<>();
+                Map<Integer, long[]> uses = new HashMap<>();
+                List<Integer> expectedEvicted = new ArrayList<>();
+                long clock = 0;
+                int hits = 0;
+                for (int i = random.nextInt(300); i > 0; i--) {
+                    int key = random.nextInt(40);
+                    if (random.nextBoolean()) {
+                        boolean present = model.containsKey(key);
+                        same &= tm.containsKey(key) == present;
+                        if (present) {
+                            same &= tm.getValue(key).equals(model.get(key));
+                            hits++;
+                            uses.get(key)[0]++;
+                            uses.get(key)[1] = ++clock;
+                        }
+                        continue;
+                    }
+                    tm.add(key, "v" + i);
+                    model.put(key, "v" + i);
+                    long[] use = uses.computeIfAbsent(key, k -> new long[2]);
+                    use[0]++;
+                    use[1] = ++clock;
+                    if (model.size() > maxEntries) {
+                        int victim = victim(policy, model, uses);
+                        model.remove(victim);
+                        uses.remove(victim);
+                        expectedEvicted.add(victim);
+                    }
+                }
+                same &= new ArrayList<>(model.keySet()).equals(keys(tm))
+                        && evicted.equals(expectedEvicted)
+                        && tm.evictions() == expectedEvicted.size()
+                        && tm.hits() == hits;
+            }
+            return prop(same);
+        });
+    }
+
+    private static int victim(BoundedSortedTreeMap.EvictionPolicy policy, TreeMap<Integer, String> model,
+                              Map<Integer, long[]> uses) {
+        switch (policy) {
+            case LOWEST_KEY:
+                return model.firstKey();
+            case HIGHEST_KEY:
+                return model.lastKey();
+            default:
+                int victim = model.firstKey();
+                for (int key : model.keySet()) {
+                    long[] use = uses.get(key);
+                    long[] best = uses.get(victim);
+                    boolean lessUsed = policy == BoundedSortedTreeMap.EvictionPolicy.LEAST_FREQUENTLY_USED
+                            ? use[0] < best[0] || (use[0] == best[0] && use[1] < best[1])
+                            : use[1] < best[1];
+                    if (lessUsed) {
+                        victim = key;
+                    }
+                }
+                return victim;
+        }
+    }
+
+    /**
+     * Check that a map bounded by bytes keeps its estimate equal to the sum of the
+     * weights of its entries, and within the bound, through adds, replaces and removes.
+     */
+    public Property stays_within_bytes() {
+        return property(arbList(arbInteger), keys -> {
+            BoundedSortedTreeMap<Integer, String> tm = new BoundedSortedTreeMap<>(
+                    new SortedTreeMap<Integer, String>(), null, BoundedSortedTreeMap.EvictionPolicy.LEAST_RECENTLY_USED,
+                    100, (key, value) -> value.length());
+            boolean within = true;
+            for (int key : keys) {
+                String value = Integer.toString(key);
+                if (tm.containsKey(key) && key % 3 == 0) {
+                    tm.remove(key);
+                }
+                else {
+                    tm.merge(key, value, String::concat);
+                }
+                long sum = 0;
+                for (String v : tm.values()) {
+                    sum += v.length();
+                }
+                within &= tm.bytes() == sum && sum <= 100;
+            }
+            return prop(within);
+        });
+    }
+
+    /**
+     * Check that every policy stays within its bound when the ordering of the map
+     * treats keys as equal that equals does not, here by their last digit.
+     */
+    public Property evicts_with_ordering_inconsistent_with_equals() {
+        return property(arbList(arbInteger), keys -> {
+            Comparator<Integer> byLastDigit = Comparator.comparingInt(key -> Math.abs(key % 10));
+            boolean within = true;
+            for (BoundedSortedTreeMap.EvictionPolicy policy : BoundedSortedTreeMap.EvictionPolicy.values()) {
+                BoundedSortedTreeMap<Integer, String> tm = new BoundedSortedTreeMap<>(
+                        new SortedTreeMap<Integer, String>(byLastDigit), byLastDigit, policy, 4);
+                for (int key : keys) {
+                    tm.add(key, Integer.toString(key));
+                    if (tm.containsKey(key + 10)) {
+                        tm.getValue(key + 10);
+                    }
+                    within &= tm.size() <= 4;
+                }
+            }
+            return prop(within);
+        });
+    }
+
+    private static List<Integer> keys(BoundedSortedTreeMap<Integer, String> tm) {
+        List<Integer> keys = new ArrayList<>();
+        tm.keys().forEach(keys::add);
+        return keys;
+    }
+}
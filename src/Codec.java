@@ -0,0 +1,199 @@
+/**
+ * Binary encoding of keys and values for map snapshots.
+ */
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes values of one type to a ByteBuffer and reads them back. A snapshot holds
+ * nothing but the encoded entries, so the same codecs must be used to save and load.
+ *
+ * size must return exactly the number of bytes write puts in the buffer, so the
+ * writer can make room for an entry before encoding it.
+ */
+public interface Codec<T> {
+
+    /**
+     * @return The number of bytes write takes for the value
+     */
+    int size(T value);
+
+    /**
+     * Encodes the value at the position of the buffer, which has at least size(value)
+     * bytes left, and advances the position past it.
+     */
+    void write(T value, ByteBuffer out);
+
+    /**
+     * Decodes a value at the position of the buffer and advances the position past it.
+     */
+    T read(ByteBuffer in);
+
+    Codec<Byte> BYTE = new Codec<Byte>() {
+        public int size(Byte value) {
+            return Byte.BYTES;
+        }
+
+        public void write(Byte value, ByteBuffer out) {
+            out.put(value);
+        }
+
+        public Byte read(ByteBuffer in) {
+            return in.get();
+        }
+    };
+
+    Codec<Boolean> BOOLEAN = new Codec<Boolean>() {
+        public int size(Boolean value) {
+            return Byte.BYTES;
+        }
+
+        public void write(Boolean value, ByteBuffer out) {
+            out.put((byte) (value ? 1 : 0));
+        }
+
+        public Boolean read(ByteBuffer in) {
+            return in.get() != 0;
+        }
+    };
+
+    Codec<Short> SHORT = new Codec<Short>() {
+        public int size(Short value) {
+            return Short.BYTES;
+        }
+
+        public void write(Short value, ByteBuffer out) {
+            out.putShort(value);
+        }
+
+        public Short read(ByteBuffer in) {
+            return in.getShort();
+        }
+    };
+
+    Codec<Character> CHAR = new Codec<Character>() {
+        public int size(Character value) {
+            return Character.BYTES;
+        }
+
+        public void write(Character value, ByteBuffer out) {
+            out.putChar(value);
+        }
+
+        public Character read(ByteBuffer in) {
+            return in.getChar();
+        }
+    };
+
+    Codec<Integer> INT = new Codec<Integer>() {
+        public int size(Integer value) {
+            return Integer.BYTES;
+        }
+
+        public void write(Integer value, ByteBuffer out) {
+            out.putInt(value);
+        }
+
+        public Integer read(ByteBuffer in) {
+            return in.getInt();
+        }
+    };
+
+    Codec<Long> LONG = new Codec<Long>() {
+        public int size(Long value) {
+            return Long.BYTES;
+        }
+
+        public void write(Long value, ByteBuffer out) {
+            out.putLong(value);
+        }
+
+        public Long read(ByteBuffer in) {
+            return in.getLong();
+        }
+    };
+
+    Codec<Float> FLOAT = new Codec<Float>() {
+        public int size(Float value) {
+            return Float.BYTES;
+        }
+
+        public void write(Float value, ByteBuffer out) {
+            out.putFloat(value);
+        }
+
+        public Float read(ByteBuffer in) {
+            return in.getFloat();
+        }
+    };
+
+    Codec<Double> DOUBLE = new Codec<Double>() {
+        public int size(Double value) {
+            return Double.BYTES;
+        }
+
+        public void write(Double value, ByteBuffer out) {
+            out.putDouble(value);
+        }
+
+        public Double read(ByteBuffer in) {
+            return in.getDouble();
+        }
+    };
+
+    /**
+     * UTF-8 bytes after their length as an int.
+     */
+    Codec<String> STRING = new Codec<String>() {
+        public int size(String value) {
+            return Integer.BYTES + utf8Length(value);
+        }
+
+        public void write(String value, ByteBuffer out) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.putInt(bytes.length);
+            out.put(bytes);
+        }
+
+        public String read(ByteBuffer in) {
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Counts the UTF-8 bytes without encoding the string. Unpaired surrogates are
+         * encoded as '?' by String.getBytes, so they count as one byte.
+         */
+        private int utf8Length(String value) {
+            int length = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    length += 1;
+                }
+                else if (c < 0x800) {
+                    length += 2;
+                }
+                else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                }
+                else if (Character.isSurrogate(c)) {
+                    length += 1;
+                }
+                else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+    };
+}
@@ -0,0 +1,258 @@
+/**
+ * Thread-safe sorted map backed by a lock-free skip list.
+ */
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * An ISortedTreeMap that many threads can use at once without a lock. The entries are
+ * kept in a ConcurrentSkipListMap, so lookups, floor and ceiling never block, and adds
+ * and removes only contend when they touch neighbouring keys.
+ *
+ * replace(K, BiFunction), compute, computeIfPresent and merge are atomic
+ * read-modify-writes: the new value is only stored if the key still has the value the
+ * function was given, and the function is retried otherwise, so it may be called more
+ * than once and should not have side effects.
+ *
+ * keys(), values() and entries() are weakly consistent: they never throw
+ * ConcurrentModificationException, they see every entry that was in the map when
+ * they were created and not removed since, and they may or may not see later
+ * changes. They are read-only; entries are removed through the map. merge and
+ * removeIf are applied one entry at a time and are not atomic as a whole. size() is
+ * exact when no other thread is changing the map.
+ *
+ * Null values are not supported. Entries returned by this map are copies of the key
+ * and value. Setting the value of a returned entry does not change the map.
+ */
+public class ConcurrentSortedTreeMap<K extends Comparable<? super K>, V> implements ISortedTreeMap<K, V> {
+    private final ConcurrentSkipListMap<K, V> map;
+    private final Comparator<K> comparator;
+    // ConcurrentSkipListMap.size() walks the whole map, so the size is counted here.
+    private final LongAdder size = new LongAdder();
+
+    /**
+     * @param kComparator Ordering of the keys, or null for their natural ordering
+     */
+    public ConcurrentSortedTreeMap(Comparator<K> kComparator) {
+        map = new ConcurrentSkipListMap<>(kComparator);
+        comparator = kComparator;
+    }
+
+    public ConcurrentSortedTreeMap() {
+        this(null);
+    }
+
+    public Entry<K, V> min() {
+        return copy(map.firstEntry());
+    }
+
+    public Entry<K, V> max() {
+        return copy(map.lastEntry());
+    }
+
+    public V add(K key, V value) {
+        V previous = map.put(key, value);
+        if (previous == null) {
+            size.increment();
+        }
+        return previous;
+    }
+
+    public V add(Entry<K, V> entry) {
+        return add(entry.key, entry.value);
+    }
+
+    public void replace(K key, V value) throws NoSuchElementException {
+        if (map.replace(key, value) == null) {
+            throw new NoSuchElementException("The key is not in the tree");
+        }
+    }
+
+    public void replace(K key, BiFunction<K, V, V> f) throws NoSuchElementException {
+        while (true) {
+            V value = map.get(key);
+            if (value == null) {
+                throw new NoSuchElementException("The key is not in the tree");
+            }
+            if (map.replace(key, value, f.apply(key, value))) {
+                return;
+            }
+        }
+    }
+
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        while (true) {
+            V current = map.get(key);
+            V value = f.apply(key, current);
+            if (current == null) {
+                if (value == null) {
+                    return null;
+                }
+                if (map.putIfAbsent(key, value) == null) {
+                    size.increment();
+                    return value;
+                }
+            }
+            else if (value == null) {
+                if (map.remove(key, current)) {
+                    size.decrement();
+                    return null;
+                }
+            }
+            else if (map.replace(key, current, value)) {
+                return value;
+            }
+        }
+    }
+
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> f) {
+        V current = map.get(key);
+        if (current != null) {
+            return current;
+        }
+        V value = f.apply(key);
+        if (value == null) {
+            return null;
+        }
+        current = map.putIfAbsent(key, value);
+        if (current != null) {
+            return current;
+        }
+        size.increment();
+        return value;
+    }
+
+    public V putIfAbsent(K key, V value) {
+        V current = map.putIfAbsent(key, value);
+        if (current == null) {
+            size.increment();
+        }
+        return current;
+    }
+
+    public V remove(Object key) throws NoSuchElementException {
+        V value = map.remove(key);
+        if (value == null) {
+            throw new NoSuchElementException("The key is not in the tree");
+        }
+        size.decrement();
+        return value;
+    }
+
+    public V getValue(Object key) throws NoSuchElementException {
+        V value = map.get(key);
+        if (value == null) {
+            throw new NoSuchElementException("The key is not in the tree");
+        }
+        return value;
+    }
+
+    public boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    public boolean containsValue(V value) {
+        return map.containsValue(value);
+    }
+
+    public Iterable<K> keys() {
+        return Collections.unmodifiableSet(map.keySet());
+    }
+
+    public Iterable<V> values() {
+        return Collections.unmodifiableCollection(map.values());
+    }
+
+    public Iterable<Entry<K, V>> entries() {
+        return () -> new Iterator<Entry<K, V>>() {
+            private final Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public Entry<K, V> next() {
+                return copy(iterator.next());
+            }
+        };
+    }
+
+    public Entry<K, V> higherOrEqualEntry(K key) {
+        return copy(map.ceilingEntry(key));
+    }
+
+    public Entry<K, V> lowerOrEqualEntry(K key) {
+        return copy(map.floorEntry(key));
+    }
+
+    public Entry<K, V> higherEntry(K key) {
+        return copy(map.higherEntry(key));
+    }
+
+    public Entry<K, V> lowerEntry(K key) {
+        return copy(map.lowerEntry(key));
+    }
+
+    public ISortedTreeMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return new SubMap<>(this, comparator, fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    public ISortedTreeMap<K, V> headMap(K toKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, null, false, toKey, inclusive);
+    }
+
+    public ISortedTreeMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, fromKey, inclusive, null, false);
+    }
+
+    public void merge(ISortedTreeMap<K, V> other) {
+        if (other == this) {
+            return;
+        }
+        for (Entry<K, V> entry : other.entries()) {
+            add(entry.key, entry.value);
+        }
+    }
+
+    /**
+     * Removes any entry for which the predicate holds true. An entry is only removed
+     * if it still has the value the predicate was tested on.
+     * @param p The predicate that tests which entries should be removed.
+     */
+    public void removeIf(BiPredicate<K, V> p) {
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            if (p.test(entry.getKey(), entry.getValue()) && map.remove(entry.getKey(), entry.getValue())) {
+                size.decrement();
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public int size() {
+        return (int) Math.max(0, size.sum());
+    }
+
+    public void clear() {
+        for (K key : map.keySet()) {
+            if (map.remove(key) != null) {
+                size.decrement();
+            }
+        }
+    }
+
+    private Entry<K, V> copy(Map.Entry<K, V> entry) {
+        return entry == null ? null : new Entry<>(entry.getKey(), entry.getValue());
+    }
+}
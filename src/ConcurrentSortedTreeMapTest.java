@@ -0,0 +1,53 @@
+import fj.test.Property;
+import fj.test.runner.PropertyTestRunner;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static fj.test.Gen.choose;
+import static fj.test.Property.*;
+
+@RunWith(PropertyTestRunner.class)
+public class ConcurrentSortedTreeMapTest {
+
+    /**
+     * Check ConcurrentSortedTreeMap against java.util.TreeMap on random operations.
+     */
+    public Property behaves_like_tree_map() {
+        return SortedTreeMapTest.behavesLikeTreeMap(ConcurrentSortedTreeMap::new);
+    }
+
+    /**
+     * Check that threads adding disjoint keys and incrementing a shared counter with
+     * replace neither lose keys nor lose increments.
+     */
+    public Property concurrent_adds_and_increments() {
+        return property(choose(0, 500), count -> {
+            ConcurrentSortedTreeMap<Integer, Integer> tm = new ConcurrentSortedTreeMap<>();
+            tm.add(-1, 0);
+            int threads = 4;
+
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int offset = t;
+                workers.add(new Thread(() -> {
+                    for (int i = 0; i < count; i++) {
+                        tm.add(i * threads + offset, i);
+                        tm.replace(-1, (key, value) -> value + 1);
+                    }
+                }));
+            }
+            workers.forEach(Thread::start);
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                }
+                catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return prop(tm.getValue(-1) == threads * count && tm.size() == threads * count + 1);
+        });
+    }
+}
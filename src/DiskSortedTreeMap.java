@@ -0,0 +1,1019 @@
+/**
+ * Sorted map stored as a B+tree in a file of fixed-size pages.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+
+/**
+ * An ISortedTreeMap for more entries than fit on the heap. The entries are kept in a
+ * B+tree like BTreeMap, but every node is a page of a file, and the file is read and
+ * written through memory-mapped regions. Page 0 holds a header; the other pages are
+ * leaves, inner nodes or free pages.
+ *
+ * Nodes are decoded from their page when first used. Inner nodes, about one for every
+ * hundred leaves with 4 KB pages, then stay in memory, so a lookup only reads the
+ * leaf from the file. Leaves go through a bounded cache that evicts the least recently
+ * used leaf, writing it back to its page if it was changed.
+ *
+ * Since keys and values can have any encoded size, nodes are split when their encoding
+ * outgrows a page, and merged with a sibling, or given an entry from one, when it
+ * shrinks below a quarter page. Every entry must therefore fit in a quarter page.
+ *
+ * Changes reach the file when their leaf is evicted, and all at once on flush and
+ * close. The file is not crash-safe: after a crash it may hold any mix of old and new
+ * pages. Keys and values must not be null. Entries returned by this map are copies of
+ * the key and value. Setting the value of a returned entry does not change the map.
+ */
+public class DiskSortedTreeMap<K extends Comparable<? super K>, V> implements ISortedTreeMap<K, V>, Closeable {
+    static final int DEFAULT_PAGE_SIZE = 4096;
+    static final int DEFAULT_CACHE_PAGES = 1 << 12;
+    private static final int MAGIC = 0x53544D44;
+    private static final int VERSION = 1;
+    private static final int REGION_BYTES = 1 << 24;
+    private static final int MIN_CACHE_PAGES = 8;
+
+    private static final byte LEAF = 1;
+    private static final byte INNER = 2;
+    private static final byte FREE = 3;
+    // Type, count, next and previous leaf.
+    private static final int LEAF_HEADER = 1 + Integer.BYTES + 2 * Long.BYTES;
+    // Type, count and the first child.
+    private static final int INNER_HEADER = 1 + Integer.BYTES + Long.BYTES;
+    // Page 0 is the header, so no node has id 0.
+    private static final long NONE = 0;
+
+    private final FileChannel channel;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final Comparator<K> comparator;
+    private final int pageSize;
+    private final int maxRecord;
+    private final int regionPages;
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+    private final Map<Long, Inner> inners = new HashMap<>();
+    private final LinkedHashMap<Long, Leaf> leaves;
+
+    private long root;
+    private long first;
+    private long pages;
+    private long freeHead;
+    private int size;
+    private int modCount;
+
+    // Results passed up from the recursive add and remove.
+    private K splitKey;
+    private V oldValue;
+    private boolean removed;
+
+    private abstract class Node {
+        final long id;
+        final ArrayList<K> keys = new ArrayList<>();
+        int bytes;
+        boolean dirty;
+
+        Node(long id) {
+            this.id = id;
+        }
+
+        abstract boolean isLeaf();
+    }
+
+    private final class Leaf extends Node {
+        final ArrayList<V> values = new ArrayList<>();
+        long next;
+        long previous;
+
+        Leaf(long id) {
+            super(id);
+            bytes = LEAF_HEADER;
+        }
+
+        boolean isLeaf() {
+            return true;
+        }
+
+        void insert(int i, K key, V value) {
+            keys.add(i, key);
+            values.add(i, value);
+            bytes += keyCodec.size(key) + valueCodec.size(value);
+            dirty = true;
+        }
+
+        void remove(int i) {
+            bytes -= keyCodec.size(keys.remove(i)) + valueCodec.size(values.remove(i));
+            dirty = true;
+        }
+
+        void setValue(int i, V value) {
+            bytes += valueCodec.size(value) - valueCodec.size(values.set(i, value));
+            dirty = true;
+        }
+
+        void recount() {
+            bytes = LEAF_HEADER;
+            for (int i = 0; i < keys.size(); i++) {
+                bytes += keyCodec.size(keys.get(i)) + valueCodec.size(values.get(i));
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+     * Child i + 1 holds the keys that are higher than or equal to key i.
+     */
+    private final class Inner extends Node {
+        final ArrayList<Long> children = new ArrayList<>();
+
+        Inner(long id) {
+            super(id);
+            bytes = INNER_HEADER;
+        }
+
+        boolean isLeaf() {
+            return false;
+        }
+
+        void insert(int keyIndex, K key, int childIndex, long child) {
+            keys.add(keyIndex, key);
+            children.add(childIndex, child);
+            bytes += keyCodec.size(key) + Long.BYTES;
+            dirty = true;
+        }
+
+        void remove(int keyIndex, int childIndex) {
+            bytes -= keyCodec.size(keys.remove(keyIndex)) + Long.BYTES;
+            children.remove(childIndex);
+            dirty = true;
+        }
+
+        void setKey(int i, K key) {
+            bytes += keyCodec.size(key) - keyCodec.size(keys.set(i, key));
+            dirty = true;
+        }
+
+        void recount() {
+            bytes = INNER_HEADER;
+            for (K key : keys) {
+                bytes += keyCodec.size(key) + Long.BYTES;
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+     * Opens the map in the file, or creates it there if the file is empty or missing.
+     * @param file        The file holding the pages, used by no other map
+     * @param keyCodec    Encoding of the keys
+     * @param valueCodec  Encoding of the values
+     * @param kComparator Ordering of the keys, or null for their natural ordering
+     * @param pageSize    Size of the pages of a new file, a power of two from 512 to 65536.
+     *                    An existing file keeps the page size it was created with.
+     * @param cachePages  The most leaves to keep decoded in memory, at least 8
+     * @throws IOException When the file cannot be opened or is not a map file
+     */
+    public DiskSortedTreeMap(Path file, Codec<K> keyCodec, Codec<V> valueCodec, Comparator<K> kComparator,
+                             int pageSize, int cachePages) throws IOException {
+        if (pageSize < 512 || pageSize > 1 << 16 || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException("The page size must be a power of two from 512 to 65536, was "
+                    + pageSize);
+        }
+        if (cachePages < MIN_CACHE_PAGES) {
+            throw new IllegalArgumentException("The cache must hold at least " + MIN_CACHE_PAGES + " pages, was "
+                    + cachePages);
+        }
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.comparator = kComparator;
+        this.leaves = new LinkedHashMap<Long, Leaf>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Leaf> eldest) {
+                if (size() <= cachePages) {
+                    return false;
+                }
+                write(eldest.getValue());
+                return true;
+            }
+        };
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            boolean existing = channel.size() > 0;
+            this.pageSize = existing ? readPageSize(file) : pageSize;
+            this.maxRecord = (this.pageSize - LEAF_HEADER) / 4;
+            this.regionPages = REGION_BYTES / this.pageSize;
+            if (existing) {
+                readHeader();
+            }
+            else {
+                clear();
+                flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public DiskSortedTreeMap(Path file, Codec<K> keyCodec, Codec<V> valueCodec, Comparator<K> kComparator)
+            throws IOException {
+        this(file, keyCodec, valueCodec, kComparator, DEFAULT_PAGE_SIZE, DEFAULT_CACHE_PAGES);
+    }
+
+    private int readPageSize(Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(3 * Integer.BYTES);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+        }
+        header.flip();
+        if (header.remaining() < 3 * Integer.BYTES || header.getInt() != MAGIC) {
+            throw new IOException("Not a map file: " + file);
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported map file version " + version + ": " + file);
+        }
+        return header.getInt();
+    }
+
+    private void readHeader() {
+        ByteBuffer header = page(0);
+        header.position(3 * Integer.BYTES);
+        root = header.getLong();
+        first = header.getLong();
+        pages = header.getLong();
+        freeHead = header.getLong();
+        size = header.getInt();
+    }
+
+    private void writeHeader() {
+        ByteBuffer header = page(0);
+        header.putInt(MAGIC).putInt(VERSION).putInt(pageSize);
+        header.putLong(root).putLong(first).putLong(pages).putLong(freeHead).putInt(size);
+    }
+
+    /**
+     * Writes every changed page and the header to the file and forces them to disk.
+     */
+    public void flush() {
+        for (Inner inner : inners.values()) {
+            write(inner);
+        }
+        for (Leaf leaf : leaves.values()) {
+            write(leaf);
+        }
+        writeHeader();
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+    }
+
+    /**
+     * Flushes the map and closes the file. The map must not be used afterwards.
+     */
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            flush();
+            channel.close();
+        }
+    }
+
+    public Entry<K, V> min() {
+        return size == 0 ? null : entry(leaf(first), 0);
+    }
+
+    public Entry<K, V> max() {
+        if (size == 0) {
+            return null;
+        }
+        Node node = node(root);
+        while (!node.isLeaf()) {
+            Inner inner = (Inner) node;
+            node = node(inner.children.get(inner.keys.size()));
+        }
+        return entry((Leaf) node, node.keys.size() - 1);
+    }
+
+    public V add(K key, V value) {
+        checkRecord(key, value);
+        oldValue = null;
+        Node split = insert(node(root), key, value);
+        if (split != null) {
+            growRoot(split);
+        }
+        V previous = oldValue;
+        oldValue = null;
+        splitKey = null;
+        return previous;
+    }
+
+    public V add(Entry<K, V> entry) {
+        return add(entry.key, entry.value);
+    }
+
+    public void replace(K key, V value) throws NoSuchElementException {
+        Leaf leaf = findLeaf(key);
+        replace(leaf, indexOf(leaf, key), key, value);
+    }
+
+    public void replace(K key, BiFunction<K, V, V> f) throws NoSuchElementException {
+        Leaf leaf = findLeaf(key);
+        int i = indexOf(leaf, key);
+        replace(leaf, i, key, f.apply(key, leaf.values.get(i)));
+    }
+
+    private int indexOf(Leaf leaf, K key) throws NoSuchElementException {
+        int i = search(leaf, key);
+        if (i < 0) {
+            throw new NoSuchElementException("The key is not in the tree");
+        }
+        return i;
+    }
+
+    /**
+     * Sets the value at i in place. Only a value that grows the leaf past its page
+     * takes a second descent, through add, to split it.
+     */
+    private void replace(Leaf leaf, int i, K key, V value) {
+        checkRecord(key, value);
+        leaf.setValue(i, value);
+        if (leaf.bytes > pageSize) {
+            add(key, value);
+        }
+    }
+
+    public V remove(Object key) throws NoSuchElementException {
+        removed = false;
+        Node split = delete(node(root), (K) key);
+        if (!removed) {
+            throw new NoSuchElementException("The key is not in the tree");
+        }
+        if (split != null) {
+            growRoot(split);
+        }
+        Node top = node(root);
+        if (!top.isLeaf() && top.keys.isEmpty()) {
+            root = ((Inner) top).children.get(0);
+            free(top);
+        }
+        V value = oldValue;
+        oldValue = null;
+        splitKey = null;
+        return value;
+    }
+
+    public V getValue(Object key) throws NoSuchElementException {
+        Leaf leaf = findLeaf((K) key);
+        int i = search(leaf, (K) key);
+        if (i < 0) {
+            throw new NoSuchElementException("The key is not in the tree");
+        }
+        return leaf.values.get(i);
+    }
+
+    public boolean containsKey(K key) {
+        return search(findLeaf(key), key) >= 0;
+    }
+
+    public boolean containsValue(V value) {
+        for (V v : values()) {
+            if (v.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Iterable<K> keys() {
+        return () -> new LeafIterator<K>() {
+            public K next() {
+                advance();
+                return leaf.keys.get(index);
+            }
+        };
+    }
+
+    public Iterable<V> values() {
+        return () -> new LeafIterator<V>() {
+            public V next() {
+                advance();
+                return leaf.values.get(index);
+            }
+        };
+    }
+
+    public Iterable<Entry<K, V>> entries() {
+        return () -> new LeafIterator<Entry<K, V>>() {
+            public Entry<K, V> next() {
+                advance();
+                return entry(leaf, index);
+            }
+        };
+    }
+
+    public Entry<K, V> higherOrEqualEntry(K key) {
+        return higher(key, true);
+    }
+
+    public Entry<K, V> lowerOrEqualEntry(K key) {
+        return lower(key, true);
+    }
+
+    public Entry<K, V> higherEntry(K key) {
+        return higher(key, false);
+    }
+
+    public Entry<K, V> lowerEntry(K key) {
+        return lower(key, false);
+    }
+
+    public ISortedTreeMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return new SubMap<>(this, comparator, fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    public ISortedTreeMap<K, V> headMap(K toKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, null, false, toKey, inclusive);
+    }
+
+    public ISortedTreeMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, fromKey, inclusive, null, false);
+    }
+
+    /**
+     * Adds all entries in the other map, in its order. If a key is present in both
+     * maps, the value in the other map takes precedent. While the keys stay within
+     * the separators above the current leaf and fit in its page, they go straight
+     * into it; only a key outside it takes a new descent, and only one that would
+     * overflow it goes through add to split it.
+     * @param other The map to add to the current map.
+     */
+    public void merge(ISortedTreeMap<K, V> other) {
+        if (other == this) {
+            return;
+        }
+        Leaf leaf = null;
+        K low = null;
+        K high = null;
+        for (Entry<K, V> entry : other.entries()) {
+            K key = entry.key;
+            V value = entry.value;
+            checkRecord(key, value);
+            if (leaf == null || (low != null && compare(key, low) < 0)
+                    || (high != null && compare(key, high) >= 0)) {
+                low = null;
+                high = null;
+                Node node = node(root);
+                while (!node.isLeaf()) {
+                    Inner inner = (Inner) node;
+                    int child = childIndex(inner, key);
+                    if (child > 0) {
+                        low = inner.keys.get(child - 1);
+                    }
+                    if (child < inner.keys.size()) {
+                        high = inner.keys.get(child);
+                    }
+                    node = node(inner.children.get(child));
+                }
+                leaf = (Leaf) node;
+            }
+            int i = search(leaf, key);
+            int grows = i >= 0 ? valueCodec.size(value) - valueCodec.size(leaf.values.get(i))
+                    : keyCodec.size(key) + valueCodec.size(value);
+            if (leaf.bytes + grows > pageSize) {
+                add(key, value);
+                leaf = null;
+            }
+            else if (i >= 0) {
+                leaf.setValue(i, value);
+            }
+            else {
+                leaf.insert(-i - 1, key, value);
+                size++;
+                modCount++;
+            }
+        }
+    }
+
+    /**
+     * Removes any entry for which the predicate holds true. The predicate is tested
+     * once per entry, in key order. The map is walked one leaf at a time, removing
+     * the matches of each leaf before moving on, so only one leaf of keys is held.
+     * @param p The predicate that tests which entries should be removed.
+     */
+    public void removeIf(BiPredicate<K, V> p) {
+        Entry<K, V> next = min();
+        while (next != null) {
+            Leaf leaf = findLeaf(next.key);
+            List<K> doomed = new ArrayList<>();
+            K last = null;
+            for (int i = search(leaf, next.key); i < leaf.keys.size(); i++) {
+                last = leaf.keys.get(i);
+                if (p.test(last, leaf.values.get(i))) {
+                    doomed.add(last);
+                }
+            }
+            for (K key : doomed) {
+                remove(key);
+            }
+            next = higherEntry(last);
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries. The file keeps its size; its pages are reused.
+     */
+    public void clear() {
+        inners.clear();
+        leaves.clear();
+        pages = 1;
+        freeHead = NONE;
+        Leaf leaf = new Leaf(allocate());
+        leaf.dirty = true;
+        leaves.put(leaf.id, leaf);
+        root = leaf.id;
+        first = leaf.id;
+        size = 0;
+        modCount++;
+    }
+
+    private void checkRecord(K key, V value) {
+        if (keyCodec.size(key) + Math.max(valueCodec.size(value), Long.BYTES) > maxRecord) {
+            throw new IllegalArgumentException("The entry takes more than " + maxRecord + " bytes");
+        }
+    }
+
+    /**
+     * Puts a new root above the old one and its new right sibling.
+     */
+    private void growRoot(Node split) {
+        Inner top = new Inner(allocate());
+        top.children.add(root);
+        top.insert(0, splitKey, 1, split.id);
+        inners.put(top.id, top);
+        root = top.id;
+    }
+
+    /**
+     * Inserts into the subtree at node, or replaces the value if the key is there.
+     * @return the new right sibling of node if it had to split, with its lowest key
+     * in splitKey, or null
+     */
+    private Node insert(Node node, K key, V value) {
+        if (node.isLeaf()) {
+            Leaf leaf = (Leaf) node;
+            int i = search(leaf, key);
+            if (i >= 0) {
+                oldValue = leaf.values.get(i);
+                leaf.setValue(i, value);
+            }
+            else {
+                leaf.insert(-i - 1, key, value);
+                size++;
+                modCount++;
+            }
+            return leaf.bytes > pageSize ? split(leaf) : null;
+        }
+        Inner inner = (Inner) node;
+        int child = childIndex(inner, key);
+        Node split = insert(node(inner.children.get(child)), key, value);
+        if (split == null) {
+            return null;
+        }
+        inner.insert(child, splitKey, child + 1, split.id);
+        return inner.bytes > pageSize ? split(inner) : null;
+    }
+
+    /**
+     * Removes the key from the subtree at node. A child that shrank below a quarter
+     * page is merged with a sibling, or takes an entry from one. Since separators
+     * differ in size, that can make node outgrow its page, and then it is split.
+     * @return the new right sibling of node if it had to split, with its lowest key
+     * in splitKey, or null. removed tells whether the key was found.
+     */
+    private Node delete(Node node, K key) {
+        if (node.isLeaf()) {
+            Leaf leaf = (Leaf) node;
+            int i = search(leaf, key);
+            if (i >= 0) {
+                oldValue = leaf.values.get(i);
+                leaf.remove(i);
+                size--;
+                modCount++;
+                removed = true;
+            }
+            return null;
+        }
+        Inner inner = (Inner) node;
+        int child = childIndex(inner, key);
+        Node split = delete(node(inner.children.get(child)), key);
+        if (!removed) {
+            return null;
+        }
+        if (split != null) {
+            inner.insert(child, splitKey, child + 1, split.id);
+        }
+        else if (node(inner.children.get(child)).bytes < pageSize / 4) {
+            rebalance(inner, child);
+        }
+        return inner.bytes > pageSize ? split(inner) : null;
+    }
+
+    /**
+     * Merges the underfull child with a sibling if they fit in one page together, or
+     * else moves one entry into it from a sibling, which is then at least three
+     * quarters full.
+     */
+    private void rebalance(Inner parent, int child) {
+        Node node = node(parent.children.get(child));
+        Node left = child > 0 ? node(parent.children.get(child - 1)) : null;
+        Node right = child < parent.keys.size() ? node(parent.children.get(child + 1)) : null;
+        if (left != null && fits(left, node, parent.keys.get(child - 1))) {
+            mergeChildren(parent, child - 1, left, node);
+        }
+        else if (right != null && fits(node, right, parent.keys.get(child))) {
+            mergeChildren(parent, child, node, right);
+        }
+        else if (left != null) {
+            borrowFromLeft(parent, child, left, node);
+        }
+        else if (right != null) {
+            borrowFromRight(parent, child, node, right);
+        }
+    }
+
+    private boolean fits(Node left, Node right, K separator) {
+        if (left.isLeaf()) {
+            return left.bytes + right.bytes - LEAF_HEADER <= pageSize;
+        }
+        return left.bytes + right.bytes - INNER_HEADER + keyCodec.size(separator) + Long.BYTES <= pageSize;
+    }
+
+    /**
+     * Moves everything in child i + 1, right, into child i, left, and frees right.
+     */
+    private void mergeChildren(Inner parent, int i, Node left, Node right) {
+        if (left.isLeaf()) {
+            Leaf leftLeaf = (Leaf) left;
+            Leaf rightLeaf = (Leaf) right;
+            leftLeaf.keys.addAll(rightLeaf.keys);
+            leftLeaf.values.addAll(rightLeaf.values);
+            leftLeaf.recount();
+            leftLeaf.next = rightLeaf.next;
+            if (leftLeaf.next != NONE) {
+                Leaf next = leaf(leftLeaf.next);
+                next.previous = leftLeaf.id;
+                next.dirty = true;
+            }
+        }
+        else {
+            Inner leftInner = (Inner) left;
+            Inner rightInner = (Inner) right;
+            leftInner.keys.add(parent.keys.get(i));
+            leftInner.keys.addAll(rightInner.keys);
+            leftInner.children.addAll(rightInner.children);
+            leftInner.recount();
+        }
+        parent.remove(i, i + 1);
+        free(right);
+    }
+
+    private void borrowFromLeft(Inner parent, int child, Node left, Node node) {
+        int last = left.keys.size() - 1;
+        if (node.isLeaf()) {
+            Leaf leftLeaf = (Leaf) left;
+            Leaf leaf = (Leaf) node;
+            leaf.insert(0, leftLeaf.keys.get(last), leftLeaf.values.get(last));
+            leftLeaf.remove(last);
+            parent.setKey(child - 1, leaf.keys.get(0));
+        }
+        else {
+            Inner leftInner = (Inner) left;
+            Inner inner = (Inner) node;
+            inner.insert(0, parent.keys.get(child - 1), 0, leftInner.children.get(last + 1));
+            parent.setKey(child - 1, leftInner.keys.get(last));
+            leftInner.remove(last, last + 1);
+        }
+    }
+
+    private void borrowFromRight(Inner parent, int child, Node node, Node right) {
+        if (node.isLeaf()) {
+            Leaf leaf = (Leaf) node;
+            Leaf rightLeaf = (Leaf) right;
+            leaf.insert(leaf.keys.size(), rightLeaf.keys.get(0), rightLeaf.values.get(0));
+            rightLeaf.remove(0);
+            parent.setKey(child, rightLeaf.keys.get(0));
+        }
+        else {
+            Inner inner = (Inner) node;
+            Inner rightInner = (Inner) right;
+            inner.insert(inner.keys.size(), parent.keys.get(child), inner.children.size(), rightInner.children.get(0));
+            parent.setKey(child, rightInner.keys.get(0));
+            rightInner.remove(0, 0);
+        }
+    }
+
+    /**
+     * Moves the upper half of the leaf, by encoded size, into a new leaf after it.
+     */
+    private Leaf split(Leaf leaf) {
+        int at = half(leaf.keys, leaf.values, leaf.bytes - LEAF_HEADER);
+        Leaf right = new Leaf(allocate());
+        move(leaf.keys, at, right.keys);
+        move(leaf.values, at, right.values);
+        leaf.recount();
+        right.recount();
+
+        right.next = leaf.next;
+        right.previous = leaf.id;
+        leaf.next = right.id;
+        if (right.next != NONE) {
+            Leaf next = leaf(right.next);
+            next.previous = right.id;
+            next.dirty = true;
+        }
+        leaves.put(right.id, right);
+        splitKey = right.keys.get(0);
+        return right;
+    }
+
+    /**
+     * Moves the keys and children after the middle key, by encoded size, into a new
+     * inner node and passes the middle key up in splitKey.
+     */
+    private Inner split(Inner inner) {
+        int at = Math.min(Math.max(half(inner.keys, null, inner.bytes - INNER_HEADER), 1), inner.keys.size() - 2);
+        Inner right = new Inner(allocate());
+        splitKey = inner.keys.get(at);
+        move(inner.keys, at + 1, right.keys);
+        move(inner.children, at + 1, right.children);
+        inner.keys.remove(at);
+        inner.recount();
+        right.recount();
+        inners.put(right.id, right);
+        return right;
+    }
+
+    /**
+     * @return the first index whose entries, with the ones before it, take at least half
+     * of the bytes, but leaving at least one entry on each side
+     */
+    private int half(List<K> keys, List<V> values, int bytes) {
+        int sum = 0;
+        int i = 0;
+        while (i < keys.size() - 1 && sum < bytes / 2) {
+            sum += keyCodec.size(keys.get(i)) + (values == null ? Long.BYTES : valueCodec.size(values.get(i)));
+            i++;
+        }
+        return Math.max(i, 1);
+    }
+
+    private static <T> void move(ArrayList<T> from, int at, ArrayList<T> to) {
+        List<T> tail = from.subList(at, from.size());
+        to.addAll(tail);
+        tail.clear();
+    }
+
+    private Entry<K, V> higher(K key, boolean inclusive) {
+        Leaf leaf = findLeaf(key);
+        int i = search(leaf, key);
+        int position = i >= 0 ? (inclusive ? i : i + 1) : -i - 1;
+        while (leaf != null && position >= leaf.keys.size()) {
+            leaf = leaf.next == NONE ? null : leaf(leaf.next);
+            position = 0;
+        }
+        return leaf == null ? null : entry(leaf, position);
+    }
+
+    private Entry<K, V> lower(K key, boolean inclusive) {
+        Leaf leaf = findLeaf(key);
+        int i = search(leaf, key);
+        int position = i >= 0 ? (inclusive ? i : i - 1) : -i - 2;
+        while (leaf != null && position < 0) {
+            leaf = leaf.previous == NONE ? null : leaf(leaf.previous);
+            position = leaf == null ? -1 : leaf.keys.size() - 1;
+        }
+        return leaf == null ? null : entry(leaf, position);
+    }
+
+    private Leaf findLeaf(K key) {
+        Node node = node(root);
+        while (!node.isLeaf()) {
+            Inner inner = (Inner) node;
+            node = node(inner.children.get(childIndex(inner, key)));
+        }
+        return (Leaf) node;
+    }
+
+    /**
+     * @return the index of the child whose subtree holds the key
+     */
+    private int childIndex(Inner inner, K key) {
+        int i = search(inner, key);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    /**
+     * Binary search among the keys of the node.
+     * @return index of the key, or -(insertion point) - 1 if it is not there
+     */
+    private int search(Node node, K key) {
+        int lo = 0;
+        int hi = node.keys.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int compare = compare(node.keys.get(mid), key);
+            if (compare < 0) {
+                lo = mid + 1;
+            }
+            else if (compare > 0) {
+                hi = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private Leaf leaf(long id) {
+        return (Leaf) node(id);
+    }
+
+    /**
+     * @return the node in the page, decoding it if it is not in memory
+     */
+    private Node node(long id) {
+        Node node = inners.get(id);
+        if (node == null) {
+            node = leaves.get(id);
+        }
+        if (node == null) {
+            node = read(id);
+        }
+        return node;
+    }
+
+    private Node read(long id) {
+        ByteBuffer page = page(id);
+        byte type = page.get();
+        int count = page.getInt();
+        if (type == LEAF) {
+            Leaf leaf = new Leaf(id);
+            leaf.next = page.getLong();
+            leaf.previous = page.getLong();
+            for (int i = 0; i < count; i++) {
+                leaf.keys.add(keyCodec.read(page));
+                leaf.values.add(valueCodec.read(page));
+            }
+            leaf.bytes = page.position();
+            leaves.put(id, leaf);
+            return leaf;
+        }
+        if (type == INNER) {
+            Inner inner = new Inner(id);
+            inner.children.add(page.getLong());
+            for (int i = 0; i < count; i++) {
+                inner.keys.add(keyCodec.read(page));
+                inner.children.add(page.getLong());
+            }
+            inner.bytes = page.position();
+            inners.put(id, inner);
+            return inner;
+        }
+        throw new IllegalStateException("Page " + id + " is not a node");
+    }
+
+    /**
+     * Encodes the node into its page if it changed since it was last written.
+     */
+    private void write(Node node) {
+        if (!node.dirty) {
+            return;
+        }
+        ByteBuffer page = page(node.id);
+        if (node.isLeaf()) {
+            Leaf leaf = (Leaf) node;
+            page.put(LEAF).putInt(leaf.keys.size()).putLong(leaf.next).putLong(leaf.previous);
+            for (int i = 0; i < leaf.keys.size(); i++) {
+                keyCodec.write(leaf.keys.get(i), page);
+                valueCodec.write(leaf.values.get(i), page);
+            }
+        }
+        else {
+            Inner inner = (Inner) node;
+            page.put(INNER).putInt(inner.keys.size()).putLong(inner.children.get(0));
+            for (int i = 0; i < inner.keys.size(); i++) {
+                keyCodec.write(inner.keys.get(i), page);
+                page.putLong(inner.children.get(i + 1));
+            }
+        }
+        node.dirty = false;
+    }
+
+    /**
+     * @return the id of a free page, reusing freed pages first
+     */
+    private long allocate() {
+        if (freeHead == NONE) {
+            return pages++;
+        }
+        long id = freeHead;
+        ByteBuffer page = page(id);
+        page.position(1);
+        freeHead = page.getLong();
+        return id;
+    }
+
+    private void free(Node node) {
+        inners.remove(node.id);
+        leaves.remove(node.id);
+        page(node.id).put(FREE).putLong(freeHead);
+        freeHead = node.id;
+    }
+
+    /**
+     * @return a buffer over the page, from its start to its end, mapping the region
+     * of the file that holds it if needed
+     */
+    private ByteBuffer page(long id) {
+        int region = (int) (id / regionPages);
+        try {
+            while (regions.size() <= region) {
+                regions.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) regions.size() * REGION_BYTES,
+                        REGION_BYTES));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        ByteBuffer buffer = regions.get(region).duplicate();
+        int offset = (int) (id % regionPages) * pageSize;
+        buffer.limit(offset + pageSize);
+        buffer.position(offset);
+        return buffer.slice();
+    }
+
+    private Entry<K, V> entry(Leaf leaf, int i) {
+        return new Entry<>(leaf.keys.get(i), leaf.values.get(i));
+    }
+
+    private int compare(K a, K b) {
+        if (comparator != null) {
+            return comparator.compare(a, b);
+        }
+        return a.compareTo(b);
+    }
+
+    /**
+     * Walks the linked leaves in order and fails fast on modification.
+     */
+    private abstract class LeafIterator<T> implements Iterator<T> {
+        Leaf leaf = leaf(first);
+        int index = -1;
+        private final int expectedModCount = modCount;
+
+        public boolean hasNext() {
+            return size > 0 && (index + 1 < leaf.keys.size() || leaf.next != NONE);
+        }
+
+        /**
+         * Moves to the next entry, leaving it at leaf.keys.get(index).
+         */
+        void advance() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            index++;
+            if (index == leaf.keys.size()) {
+                leaf = leaf(leaf.next);
+                index = 0;
+            }
+        }
+    }
+}
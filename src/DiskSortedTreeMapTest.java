@@ -0,0 +1,151 @@
+import fj.test.Property;
+import fj.test.runner.PropertyTestRunner;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static fj.test.Arbitrary.*;
+import static fj.test.Property.*;
+
+@RunWith(PropertyTestRunner.class)
+public class DiskSortedTreeMapTest {
+    private static final Path files = createFiles();
+
+    private static Path createFiles() {
+        try {
+            Path path = Files.createTempDirectory("disk");
+            path.toFile().deleteOnExit();
+            return path;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Path newFile() {
+        try {
+            Path file = Files.createTempFile(files, "map", ".pages");
+            file.toFile().deleteOnExit();
+            return file;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static DiskSortedTreeMap<Integer, String> open(Path file, int pageSize, int cachePages) {
+        try {
+            return new DiskSortedTreeMap<>(file, Codec.INT, Codec.STRING, null, pageSize, cachePages);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Check DiskSortedTreeMap against java.util.TreeMap on random operations, with a
+     * cache small enough that leaves are written out and read back.
+     */
+    public Property behaves_like_tree_map() {
+        return SortedTreeMapTest.behavesLikeTreeMap(() -> open(newFile(), 4096, 8));
+    }
+
+    /**
+     * Check that a new file can be closed, reopened and then filled.
+     */
+    public Property reopens_empty_file() {
+        return property(arbInteger, key -> {
+            Path file = newFile();
+            try {
+                open(file, 512, 8).close();
+                DiskSortedTreeMap<Integer, String> reopened = open(file, 512, 8);
+                boolean same = reopened.isEmpty() && !reopened.containsKey(key);
+                reopened.add(key, "a");
+                same &= reopened.size() == 1 && reopened.getValue(key).equals("a");
+                reopened.close();
+                return prop(same);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                file.toFile().delete();
+            }
+        });
+    }
+
+    /**
+     * Check a deep tree of small pages, with values of varying size, against
+     * java.util.TreeMap through many adds, replaces and removes, then reopen the file
+     * and check that everything was written.
+     */
+    public Property survives_reopening() {
+        return property(arbLong, seed -> {
+            Random random = new Random(seed);
+            Path file = newFile();
+            TreeMap<Integer, String> model = new TreeMap<>();
+            try {
+                DiskSortedTreeMap<Integer, String> tm = open(file, 512, 8);
+                int operations = random.nextInt(4000);
+                for (int i = 0; i < operations; i++) {
+                    int key = random.nextInt(2000);
+                    String value = String.join("", Collections.nCopies(random.nextInt(60), "v"));
+                    if (random.nextInt(3) == 0 && model.containsKey(key)) {
+                        tm.remove(key);
+                        model.remove(key);
+                    }
+                    else {
+                        tm.add(key, value);
+                        model.put(key, value);
+                    }
+                }
+                int divisor = 2 + random.nextInt(3);
+                tm.removeIf((key, value) -> key % divisor == 0);
+                model.keySet().removeIf(key -> key % divisor == 0);
+                boolean same = sameEntries(tm, model);
+                int probe = random.nextInt(2000);
+                same &= equal(tm.lowerEntry(probe), model.lowerEntry(probe))
+                        && equal(tm.higherOrEqualEntry(probe), model.ceilingEntry(probe));
+                tm.close();
+
+                DiskSortedTreeMap<Integer, String> reopened = open(file, 4096, 8);
+                same &= sameEntries(reopened, model);
+                reopened.clear();
+                reopened.close();
+
+                DiskSortedTreeMap<Integer, String> cleared = open(file, 4096, 8);
+                same &= cleared.isEmpty() && !cleared.containsKey(probe) && cleared.min() == null;
+                cleared.add(1, "one");
+                same &= cleared.size() == 1 && cleared.getValue(1).equals("one");
+                cleared.close();
+                return prop(same);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                file.toFile().delete();
+            }
+        });
+    }
+
+    private static boolean equal(Entry<Integer, String> entry, Map.Entry<Integer, String> expected) {
+        return entry == null
+                ? expected == null
+                : expected != null && entry.key.equals(expected.getKey()) && entry.value.equals(expected.getValue());
+    }
+
+    private static boolean sameEntries(DiskSortedTreeMap<Integer, String> tm, TreeMap<Integer, String> model) {
+        List<Entry<Integer, String>> entries = new ArrayList<>();
+        tm.entries().forEach(entries::add);
+        List<Entry<Integer, String>> expected = new ArrayList<>();
+        model.forEach((key, value) -> expected.add(new Entry<>(key, value)));
+        List<Entry<Integer, String>> backwards = new ArrayList<>();
+        for (Entry<Integer, String> entry = tm.max(); entry != null; entry = tm.lowerEntry(entry.key)) {
+            backwards.add(0, entry);
+        }
+        return entries.equals(expected) && backwards.equals(expected) && tm.size() == model.size();
+    }
+}
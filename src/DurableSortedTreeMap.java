@@ -0,0 +1,482 @@
+/**
+ * Crash-safe sorted map backed by a snapshot and a write-ahead log.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * A sorted map whose changes survive a crash. The map lives in memory, and every
+ * change is appended to a write-ahead log in a directory before the call that made it
+ * returns. Concurrent callers share fsyncs through group commit, see WriteAheadLog, so
+ * a thread waits for at most one fsync after its own change was buffered.
+ *
+ * The directory holds snapshot.N files in the format of SnapshotFile and log.N files.
+ * snapshot.N holds the whole map as it was when log.N was started. Opening the map
+ * loads the newest snapshot and replays every log from its generation on, then starts
+ * a new log. Once the current log grows beyond a limit, a background thread compacts:
+ * it writes a new snapshot and deletes the logs and snapshots it replaces. The map is
+ * kept in a PersistentSortedTreeMap, so the snapshot is taken in O(1); writers are only
+ * held up while the log is switched to a new file, not while the snapshot is written.
+ * A failed background compaction loses nothing and is retried on a later write; it is
+ * counted by compactionFailures() and its cause kept in lastCompactionFailure().
+ *
+ * Changes are logged by their effect, as puts and deletes of the affected keys, so
+ * the functions given to replace, compute, merge and removeIf need not be repeatable.
+ * The record of a change is appended before the change is applied, so a change that
+ * cannot be logged leaves the map as it was. Keys and values must not be null, since
+ * the codecs cannot encode null; they are rejected before the map changes.
+ *
+ * Reads never take a lock, as in PersistentSortedTreeMap, and its notes on iteration
+ * apply here too. Writes are serialized, so that the log order is the order the
+ * changes were applied in. A change is visible to other threads as soon as it is
+ * applied, which may be just before it is durable. If writing the log fails, the
+ * failing call and every later change throw UncheckedIOException; the map should then
+ * be closed and opened again from the directory.
+ */
+public class DurableSortedTreeMap<K extends Comparable<? super K>, V> implements ISortedTreeMap<K, V>, Closeable {
+    // Compact once the log has grown by this much since the last snapshot.
+    static final long DEFAULT_COMPACTION_BYTES = 64L << 20;
+    private static final String SNAPSHOT = "snapshot.";
+    private static final String LOG = "log.";
+
+    private final Path directory;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final Comparator<K> comparator;
+    private final long compactionBytes;
+    // Writes hold the lock of the map while they apply a change and append its records.
+    private final PersistentSortedTreeMap<K, V> map;
+    private final WriteAheadLog<K, V> log;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "log compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final AtomicLong compactionFailures = new AtomicLong();
+    private volatile IOException lastCompactionFailure;
+    // Guarded by the lock of the map.
+    private long generation;
+
+    /**
+     * Opens the map stored in the directory, creating the directory if needed.
+     * @param directory   Where the snapshots and logs are kept, used by no other map
+     * @param keyCodec    Encoding of the keys
+     * @param valueCodec  Encoding of the values
+     * @param kComparator Ordering of the keys, or null for their natural ordering
+     * @param compactionBytes Size the log may reach before it is compacted into a new snapshot
+     * @throws IOException When the directory cannot be read or its files are damaged
+     */
+    public DurableSortedTreeMap(Path directory, Codec<K> keyCodec, Codec<V> valueCodec, Comparator<K> kComparator,
+                                long compactionBytes) throws IOException {
+        this.directory = directory;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.comparator = kComparator;
+        this.compactionBytes = compactionBytes;
+        Files.createDirectories(directory);
+        this.map = new PersistentSortedTreeMap<>(kComparator);
+        map.merge(recover());
+        this.log = new WriteAheadLog<>(file(LOG, generation), keyCodec, valueCodec);
+    }
+
+    public DurableSortedTreeMap(Path directory, Codec<K> keyCodec, Codec<V> valueCodec, Comparator<K> kComparator)
+            throws IOException {
+        this(directory, keyCodec, valueCodec, kComparator, DEFAULT_COMPACTION_BYTES);
+    }
+
+    /**
+     * Loads the newest snapshot, replays the logs after it and picks the generation of
+     * the next log. Files that a newer snapshot replaces, and temporary files of
+     * snapshots that were never finished, are deleted.
+     */
+    private SortedTreeMap<K, V> recover() throws IOException {
+        TreeMap<Long, Path> snapshots = new TreeMap<>();
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(file);
+                }
+                else if (name.startsWith(SNAPSHOT)) {
+                    snapshots.put(generationOf(name, SNAPSHOT), file);
+                }
+                else if (name.startsWith(LOG)) {
+                    logs.put(generationOf(name, LOG), file);
+                }
+            }
+        }
+
+        long snapshotGeneration = snapshots.isEmpty() ? 0 : snapshots.lastKey();
+        SortedTreeMap<K, V> recovered = snapshots.isEmpty()
+                ? new SortedTreeMap<>(comparator)
+                : SortedTreeMap.load(snapshots.lastEntry().getValue(), keyCodec, valueCodec, comparator);
+        WriteAheadLog.Replay<K, V> replay = new WriteAheadLog.Replay<K, V>() {
+            public void put(K key, V value) {
+                recovered.add(key, value);
+            }
+
+            public void delete(K key) {
+                if (recovered.containsKey(key)) {
+                    recovered.remove(key);
+                }
+            }
+
+            public void clear() {
+                recovered.clear();
+            }
+        };
+        for (Path log : logs.tailMap(snapshotGeneration, true).values()) {
+            WriteAheadLog.replay(log, keyCodec, valueCodec, replay);
+        }
+
+        generation = Math.max(snapshotGeneration, logs.isEmpty() ? 0 : logs.lastKey()) + 1;
+        deleteBefore(snapshotGeneration);
+        return recovered;
+    }
+
+    private static long generationOf(String name, String prefix) throws IOException {
+        try {
+            return Long.parseLong(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected file in the map directory: " + name);
+        }
+    }
+
+    private Path file(String prefix, long generation) {
+        return directory.resolve(prefix + generation);
+    }
+
+    /**
+     * Deletes the snapshots and logs of generations before the given one.
+     */
+    private void deleteBefore(long generation) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    continue;
+                }
+                if ((name.startsWith(SNAPSHOT) && generationOf(name, SNAPSHOT) < generation)
+                        || (name.startsWith(LOG) && generationOf(name, LOG) < generation)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the map and deletes the logs it replaces, now, in the
+     * calling thread. Writers wait only while the log is switched to a new file; the
+     * snapshot is taken in O(1) and written out after they can go on.
+     * @throws IOException When the snapshot or the log could not be written
+     */
+    public synchronized void compact() throws IOException {
+        PersistentSortedTreeMap<K, V> snapshot;
+        long snapshotGeneration;
+        synchronized (map) {
+            log.rotate(file(LOG, generation + 1));
+            snapshot = map.snapshot();
+            snapshotGeneration = ++generation;
+        }
+        // The directory is forced after the snapshot is moved into place, so the old
+        // logs are only deleted once the snapshot replacing them survives a crash.
+        SnapshotFile.write(file(SNAPSHOT, snapshotGeneration), snapshot.entries(), snapshot.size(),
+                keyCodec, valueCodec);
+        deleteBefore(snapshotGeneration);
+    }
+
+    /**
+     * Compacts in the background if the log has outgrown the limit and no compaction
+     * is waiting already.
+     */
+    private void compactIfLarge() {
+        if (log.bytes() < compactionBytes || !compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        compactor.execute(() -> {
+            try {
+                compact();
+                lastCompactionFailure = null;
+            } catch (IOException e) {
+                // The log is still complete, so nothing is lost; the next write retries.
+                compactionFailures.incrementAndGet();
+                lastCompactionFailure = e;
+            } finally {
+                compactionScheduled.set(false);
+            }
+        });
+    }
+
+    /**
+     * @return The number of background compactions that failed since the map was opened
+     */
+    public long compactionFailures() {
+        return compactionFailures.get();
+    }
+
+    /**
+     * @return Why the last background compaction failed, or null if it succeeded or
+     * none has run. While compaction keeps failing the log grows without limit.
+     */
+    public IOException lastCompactionFailure() {
+        return lastCompactionFailure;
+    }
+
+    /**
+     * Applies a change under the lock of the map, appending its log records there too
+     * so that the log order is the order of the changes. Then waits, without the lock,
+     * until the records are durable.
+     */
+    private <R> R write(Function<ISortedTreeMap<K, V>, R> change) {
+        R result;
+        long sequence;
+        synchronized (map) {
+            result = change.apply(map);
+            sequence = log.lastSequence();
+        }
+        try {
+            log.sync(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        compactIfLarge();
+        return result;
+    }
+
+    /**
+     * Logs and then stores the outcome of a write: the new value of the key, or that it
+     * is gone. Since the record is appended first, one that cannot be encoded leaves the
+     * map as it was.
+     * @param present Whether the key was in the map before the write
+     */
+    private V store(ISortedTreeMap<K, V> m, K key, boolean present, V value) {
+        if (value != null) {
+            log.appendPut(key, value);
+            m.add(key, value);
+        }
+        else if (present) {
+            log.appendDelete(key);
+            m.remove(key);
+        }
+        return value;
+    }
+
+    public Entry<K, V> min() {
+        return map.min();
+    }
+
+    public Entry<K, V> max() {
+        return map.max();
+    }
+
+    public V add(K key, V value) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        return write(m -> {
+            log.appendPut(key, value);
+            return m.add(key, value);
+        });
+    }
+
+    public V add(Entry<K, V> entry) {
+        return add(entry.key, entry.value);
+    }
+
+    public void replace(K key, V value) throws NoSuchElementException {
+        Objects.requireNonNull(value);
+        write(m -> {
+            m.getValue(key);
+            return store(m, key, true, value);
+        });
+    }
+
+    /**
+     * Applies a function to the value at key and replaces that value.
+     * @throws NoSuchElementException When key is not in map
+     * @throws NullPointerException When the function returns null, which cannot be stored
+     */
+    public void replace(K key, BiFunction<K, V, V> f) throws NoSuchElementException {
+        write(m -> store(m, key, true, Objects.requireNonNull(f.apply(key, m.getValue(key)))));
+    }
+
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        return write(m -> {
+            boolean present = m.containsKey(key);
+            return store(m, key, present, f.apply(key, present ? m.getValue(key) : null));
+        });
+    }
+
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> f) {
+        return write(m -> m.containsKey(key) ? m.getValue(key) : store(m, key, false, f.apply(key)));
+    }
+
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        return write(m -> m.containsKey(key) ? store(m, key, true, f.apply(key, m.getValue(key))) : null);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        Objects.requireNonNull(value);
+        return write(m -> {
+            if (m.containsKey(key)) {
+                return m.getValue(key);
+            }
+            store(m, key, false, value);
+            return null;
+        });
+    }
+
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> f) {
+        Objects.requireNonNull(value);
+        return write(m -> {
+            boolean present = m.containsKey(key);
+            return store(m, key, present, present ? f.apply(m.getValue(key), value) : value);
+        });
+    }
+
+    public V remove(Object key) throws NoSuchElementException {
+        return write(m -> {
+            V value = m.getValue(key);
+            store(m, (K) key, true, null);
+            return value;
+        });
+    }
+
+    public V getValue(Object key) throws NoSuchElementException {
+        return map.getValue(key);
+    }
+
+    public boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    public boolean containsValue(V value) {
+        return map.containsValue(value);
+    }
+
+    public Iterable<K> keys() {
+        return map.keys();
+    }
+
+    public Iterable<V> values() {
+        return map.values();
+    }
+
+    public Iterable<Entry<K, V>> entries() {
+        return map.entries();
+    }
+
+    public Entry<K, V> higherOrEqualEntry(K key) {
+        return map.higherOrEqualEntry(key);
+    }
+
+    public Entry<K, V> lowerOrEqualEntry(K key) {
+        return map.lowerOrEqualEntry(key);
+    }
+
+    public Entry<K, V> higherEntry(K key) {
+        return map.higherEntry(key);
+    }
+
+    public Entry<K, V> lowerEntry(K key) {
+        return map.lowerEntry(key);
+    }
+
+    public ISortedTreeMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return new SubMap<>(this, comparator, fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    public ISortedTreeMap<K, V> headMap(K toKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, null, false, toKey, inclusive);
+    }
+
+    public ISortedTreeMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, fromKey, inclusive, null, false);
+    }
+
+    public void merge(ISortedTreeMap<K, V> other) {
+        if (other == this) {
+            return;
+        }
+        // Copied first, so that no lock of the other map is taken under ours.
+        List<Entry<K, V>> entries = new ArrayList<>();
+        for (Entry<K, V> entry : other.entries()) {
+            entries.add(new Entry<>(Objects.requireNonNull(entry.key), Objects.requireNonNull(entry.value)));
+        }
+        write(m -> {
+            for (Entry<K, V> entry : entries) {
+                store(m, entry.key, false, entry.value);
+            }
+            return null;
+        });
+    }
+
+    public void removeIf(BiPredicate<K, V> p) {
+        write(m -> {
+            List<K> removed = new ArrayList<>();
+            // Keys already in the map can always be encoded, so logging them after they
+            // are removed cannot fail halfway.
+            m.removeIf((key, value) -> {
+                if (p.test(key, value)) {
+                    removed.add(key);
+                    return true;
+                }
+                return false;
+            });
+            for (K key : removed) {
+                log.appendDelete(key);
+            }
+            return null;
+        });
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public void clear() {
+        write(m -> {
+            log.appendClear();
+            m.clear();
+            return null;
+        });
+    }
+
+    /**
+     * Waits for a running compaction, makes every change durable and closes the log.
+     * The map must not be used afterwards.
+     */
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+}
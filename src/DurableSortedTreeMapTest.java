@@ -0,0 +1,207 @@
+import fj.test.Property;
+import fj.test.runner.PropertyTestRunner;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static fj.test.Arbitrary.*;
+import static fj.test.Gen.choose;
+import static fj.test.Property.*;
+
+@RunWith(PropertyTestRunner.class)
+public class DurableSortedTreeMapTest {
+    private static final Path directories = createDirectories();
+
+    private static Path createDirectories() {
+        try {
+            Path path = Files.createTempDirectory("durable");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(path)));
+            return path;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void delete(Path path) {
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static DurableSortedTreeMap<Integer, String> open(Path directory, long compactionBytes) {
+        try {
+            return new DurableSortedTreeMap<>(directory, Codec.INT, Codec.STRING, null, compactionBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Path newDirectory() {
+        try {
+            return Files.createTempDirectory(directories, "map");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Check DurableSortedTreeMap against java.util.TreeMap on random operations.
+     */
+    public Property behaves_like_tree_map() {
+        return SortedTreeMapTest.behavesLikeTreeMap(() -> open(newDirectory(), 1 << 10));
+    }
+
+    /**
+     * Check that a map opened again from its directory has every change made before,
+     * also when the log was compacted along the way and when a record at the end of
+     * the log was only partly written.
+     */
+    public Property survives_reopening() {
+        return property(arbList(arbInteger), choose(1, 3), (keys, divisor) -> {
+            Path directory = newDirectory();
+            TreeMap<Integer, String> model = new TreeMap<>();
+            try {
+                DurableSortedTreeMap<Integer, String> tm = open(directory, 1 << 8);
+                keys.foreachDoEffect(key -> {
+                    if (model.containsKey(key) && key % 2 == 0) {
+                        tm.remove(key);
+                        model.remove(key);
+                    }
+                    else {
+                        tm.merge(key, "x", String::concat);
+                        model.merge(key, "x", String::concat);
+                    }
+                });
+                tm.removeIf((key, value) -> key % (divisor + 1) == 0);
+                model.keySet().removeIf(key -> key % (divisor + 1) == 0);
+                tm.close();
+                boolean compacted = tm.compactionFailures() == 0 && tm.lastCompactionFailure() == null;
+
+                Path log = latestLog(directory);
+                Files.write(log, new byte[]{0, 0, 0, 9, 0, 0, 0, 0, 1, 2}, StandardOpenOption.APPEND);
+                DurableSortedTreeMap<Integer, String> reopened = open(directory, 1 << 8);
+                List<Entry<Integer, String>> entries = new ArrayList<>();
+                reopened.entries().forEach(entries::add);
+                reopened.add(0, "after");
+                reopened.close();
+                DurableSortedTreeMap<Integer, String> again = open(directory, 1 << 8);
+                String after = again.getValue(0);
+                again.close();
+
+                List<Entry<Integer, String>> expected = new ArrayList<>();
+                model.forEach((key, value) -> expected.add(new Entry<>(key, value)));
+                return prop(compacted && entries.equals(expected) && after.equals("after"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                delete(directory);
+            }
+        });
+    }
+
+    private static Path latestLog(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("log."))
+                    .max(Comparator.comparingLong(file -> Long.parseLong(file.getFileName().toString().substring(4))))
+                    .get();
+        }
+    }
+
+    /**
+     * Check that concurrent writers all get their changes logged, sharing fsyncs.
+     */
+    public Property concurrent_writes_are_durable() {
+        return property(choose(0, 200), count -> {
+            Path directory = newDirectory();
+            try {
+                DurableSortedTreeMap<Integer, String> tm = open(directory, 1 << 12);
+                int writers = 4;
+                List<Thread> threads = new ArrayList<>();
+                for (int t = 0; t < writers; t++) {
+                    int offset = t;
+                    threads.add(new Thread(() -> {
+                        for (int i = 0; i < count; i++) {
+                            tm.add(i * writers + offset, "v");
+                        }
+                    }));
+                }
+                threads.forEach(Thread::start);
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                tm.close();
+
+                DurableSortedTreeMap<Integer, String> reopened = open(directory, 1 << 12);
+                boolean all = reopened.size() == writers * count;
+                for (int key = 0; key < writers * count; key++) {
+                    all &= reopened.containsKey(key);
+                }
+                reopened.close();
+                return prop(all);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                delete(directory);
+            }
+        });
+    }
+
+    /**
+     * Check that writes of null, which cannot be logged, fail without changing the map,
+     * and that every later write still survives reopening.
+     */
+    public Property rejected_writes_change_nothing() {
+        return property(arbList(arbInteger), keys -> {
+            Path directory = newDirectory();
+            try {
+                DurableSortedTreeMap<Integer, String> tm = open(directory, 1 << 20);
+                TreeMap<Integer, String> model = new TreeMap<>();
+                for (int key : keys) {
+                    tm.add(key, "v");
+                    model.put(key, "v");
+                    try {
+                        if (key % 2 == 0) {
+                            tm.add(key + 1, null);
+                        }
+                        else {
+                            tm.replace(key, (k, v) -> null);
+                        }
+                    } catch (NullPointerException e) {
+                        // Expected, and the map must be unchanged.
+                    }
+                }
+                boolean same = sameAs(tm, model);
+                tm.close();
+                DurableSortedTreeMap<Integer, String> reopened = open(directory, 1 << 20);
+                same &= sameAs(reopened, model);
+                reopened.close();
+                return prop(same);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                delete(directory);
+            }
+        });
+    }
+
+    private static boolean sameAs(DurableSortedTreeMap<Integer, String> tm, TreeMap<Integer, String> model) {
+        List<Entry<Integer, String>> entries = new ArrayList<>();
+        tm.entries().forEach(entries::add);
+        List<Entry<Integer, String>> expected = new ArrayList<>();
+        model.forEach((key, value) -> expected.add(new Entry<>(key, value)));
+        return entries.equals(expected);
+    }
+}
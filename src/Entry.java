@@ -4,13 +4,16 @@
 
 public class Entry<K, V> {
 
+    public static final boolean RED = true;
+    public static final boolean BLACK = false;
 
     public K key;
     public V value;
     public Entry<K,V> leftChild;
     public Entry<K,V> rightChild;
     public Entry<K,V> parent;
-
+    public boolean color = BLACK;
+    public int size;
 
 
     public Entry() {
@@ -23,13 +26,14 @@ public class Entry<K, V> {
         this();
         this.key = key;
         this.value = value;
+        this.size = 1;
     }
 
     @Override
     public boolean equals(Object o) {
         if (o instanceof Entry) {
             Entry other = (Entry)o;
-            return this.value.equals(other.value) && this.value.equals(other.value);
+            return this.key.equals(other.key) && this.value.equals(other.value);
         }
         return false;
     }
@@ -54,6 +58,14 @@ public class Entry<K, V> {
         return parent;
     }
 
+    public boolean getColor() {
+        return color;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
     public void setKey(K key) {
         this.key = key;
     }
@@ -73,4 +85,8 @@ public class Entry<K, V> {
     public void setParent(Entry<K, V> parent) {
         this.parent = parent;
     }
+
+    public void setColor(boolean color) {
+        this.color = color;
+    }
 }
@@ -3,8 +3,10 @@
  */
 
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
+import java.util.function.Function;
 
 public interface ISortedTreeMap<K extends Comparable<? super K>, V> {
 
@@ -55,6 +57,78 @@ public interface ISortedTreeMap<K extends Comparable<? super K>, V> {
      */
     void replace(K key, BiFunction<K, V, V> f) throws NoSuchElementException;
 
+    /**
+     * Computes a new value for the key from its current value, or from null if the key
+     * is not present. If the function returns null, the entry is removed, or not added.
+     * Implementations should do this in a single search for the key; this default
+     * searches up to three times.
+     * @param key The key to compute a value for
+     * @param f The function from the key and its current value, or null, to the new value
+     * @return The new value, or null if there is none
+     */
+    default V compute(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        boolean present = containsKey(key);
+        V value = f.apply(key, present ? getValue(key) : null);
+        if (value == null) {
+            if (present) {
+                remove(key);
+            }
+            return null;
+        }
+        add(key, value);
+        return value;
+    }
+
+    /**
+     * Adds the value computed by the function if the key is not present. Nothing is
+     * added if the function returns null.
+     * @param key The key to look for
+     * @param f The function from the key to the value to add
+     * @return The current value for the key, or null if there is none
+     */
+    default V computeIfAbsent(K key, Function<? super K, ? extends V> f) {
+        return compute(key, (k, v) -> v == null ? f.apply(k) : v);
+    }
+
+    /**
+     * Computes a new value for the key if it is present. If the function returns null,
+     * the entry is removed.
+     * @param key The key to look for
+     * @param f The function from the key and its current value to the new value
+     * @return The new value, or null if there is none
+     */
+    default V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        return compute(key, (k, v) -> v == null ? null : f.apply(k, v));
+    }
+
+    /**
+     * Adds the value for the key if the key is not present.
+     * @param key The key to look for
+     * @param value The value to add
+     * @return The current value for the key, or null if it was added
+     */
+    default V putIfAbsent(K key, V value) {
+        if (containsKey(key)) {
+            return getValue(key);
+        }
+        add(key, value);
+        return null;
+    }
+
+    /**
+     * Adds the value if the key is not present, and otherwise combines the current value
+     * with it. If the function returns null, the entry is removed.
+     * @param key The key to merge the value into
+     * @param value The value to add or combine with the current value
+     * @param f The function from the current value and the given value to the new value
+     * @return The new value, or null if there is none
+     * @throws NullPointerException When value is null
+     */
+    default V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> f) {
+        Objects.requireNonNull(value);
+        return compute(key, (k, v) -> v == null ? value : f.apply(v, value));
+    }
+
     /**
      * Removes the entry for key in the map. Throws an exception if the key is not present
      * in the map.
@@ -120,6 +194,48 @@ public interface ISortedTreeMap<K extends Comparable<? super K>, V> {
      */
     Entry<K, V> lowerOrEqualEntry(K key);
 
+    /**
+     * Finds the entry with the lowest key that is strictly higher than the key.
+     * @param key The key to compare with
+     * @return The next higher entry, or null if no such entry exists
+     */
+    Entry<K, V> higherEntry(K key);
+
+    /**
+     * Finds the entry with the highest key that is strictly lower than the key.
+     * @param key The key to compare with
+     * @return The next lower entry, or null if no such entry exists
+     */
+    Entry<K, V> lowerEntry(K key);
+
+    /**
+     * Returns a view of the entries with keys from fromKey to toKey. The view is backed
+     * by the map, so changes in one are seen in the other, and nothing is copied.
+     * @param fromKey The lower bound of the view
+     * @param fromInclusive true if the lower bound is part of the view
+     * @param toKey The upper bound of the view
+     * @param toInclusive true if the upper bound is part of the view
+     * @return A view of the entries in the range
+     * @throws IllegalArgumentException When fromKey is higher than toKey
+     */
+    ISortedTreeMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive);
+
+    /**
+     * Returns a view of the entries with keys lower than toKey, backed by the map.
+     * @param toKey The upper bound of the view
+     * @param inclusive true if the upper bound is part of the view
+     * @return A view of the entries below the bound
+     */
+    ISortedTreeMap<K, V> headMap(K toKey, boolean inclusive);
+
+    /**
+     * Returns a view of the entries with keys higher than fromKey, backed by the map.
+     * @param fromKey The lower bound of the view
+     * @param inclusive true if the lower bound is part of the view
+     * @return A view of the entries above the bound
+     */
+    ISortedTreeMap<K, V> tailMap(K fromKey, boolean inclusive);
+
     /**
      * Adds all entries in the other map into the current map. If a key is present
      * in both maps, the key in the other map takes precedent.
@@ -0,0 +1,36 @@
+/**
+ * Entry of an IntSortedTreeMap, with the key stored as a primitive int.
+ */
+
+import java.util.Objects;
+
+public class IntEntry<V> extends PrimitiveEntry<IntEntry<V>, V> {
+
+    public int key;
+
+    public IntEntry() {
+    }
+
+    public IntEntry(int key, V value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof IntEntry) {
+            IntEntry<?> other = (IntEntry<?>) o;
+            return this.key == other.key && this.value.equals(other.value);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Integer.hashCode(key) + Objects.hashCode(value);
+    }
+
+    public int getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Entry of a LongSortedTreeMap, with the key stored as a primitive long.
+ */
+
+import java.util.Objects;
+
+public class LongEntry<V> extends PrimitiveEntry<LongEntry<V>, V> {
+
+    public long key;
+
+    public LongEntry() {
+    }
+
+    public LongEntry(long key, V value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof LongEntry) {
+            LongEntry<?> other = (LongEntry<?>) o;
+            return this.key == other.key && this.value.equals(other.value);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(key) + Objects.hashCode(value);
+    }
+
+    public long getKey() {
+        return key;
+    }
+}
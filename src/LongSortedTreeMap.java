@@ -0,0 +1,250 @@
+/**
+ * Sorted map with primitive long keys.
+ */
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A red-black tree like SortedTreeMap, specialised for long keys. Keys are stored and
+ * compared as primitives, so no operation boxes a key and each entry is one object
+ * smaller than an Entry holding a Long. The tree itself is kept by
+ * PrimitiveSortedTreeMap; this class only searches it by key.
+ */
+public class LongSortedTreeMap<V> extends PrimitiveSortedTreeMap<LongEntry<V>, V> {
+
+    /**
+     * A function of a key and its value, without boxing the key.
+     */
+    public interface KeyValueFunction<V> {
+        V apply(long key, V value);
+    }
+
+    /**
+     * A predicate on a key and its value, without boxing the key.
+     */
+    public interface KeyValuePredicate<V> {
+        boolean test(long key, V value);
+    }
+
+    public LongSortedTreeMap() {
+        super(new LongEntry<>());
+    }
+
+    /**
+     * Inserts the value for the key, or replaces the value if the key is present.
+     * @param key The key to be inserted
+     * @param value The value to be inserted
+     * @return Previous value, or null if the key was not in the map
+     */
+    public V add(long key, V value) {
+        LongEntry<V> futureParent = nil;
+        LongEntry<V> current = root;
+
+        while (!isNil(current)) {
+            futureParent = current;
+            if (key > current.key) {
+                current = current.rightChild;
+            }
+            else if (key < current.key) {
+                current = current.leftChild;
+            }
+            else {
+                V returnValue = current.value;
+                current.value = value;
+                return returnValue;
+            }
+        }
+
+        link(futureParent, new LongEntry<>(key, value), isNil(futureParent) || key < futureParent.key);
+        return null;
+    }
+
+    /**
+     * Replaces the value for a key that is already in the map.
+     * @param key The key for which the value is replaced
+     * @param value The new value
+     * @throws NoSuchElementException When key is not in map
+     */
+    public void replace(long key, V value) throws NoSuchElementException {
+        findExisting(key).value = value;
+    }
+
+    /**
+     * Applies a function to the value at key and replaces that value.
+     * @param key The key for which we are replacing the value
+     * @param f The function to apply to the value
+     * @throws NoSuchElementException When key is not in map
+     */
+    public void replace(long key, KeyValueFunction<V> f) throws NoSuchElementException {
+        LongEntry<V> entry = findExisting(key);
+        entry.value = f.apply(entry.key, entry.value);
+    }
+
+    /**
+     * Removes the entry for the key.
+     * @param key The key for the entry to remove
+     * @return The removed value
+     * @throws NoSuchElementException When key is not in map
+     */
+    public V remove(long key) throws NoSuchElementException {
+        LongEntry<V> entry = findExisting(key);
+        V value = entry.value;
+        deleteEntry(entry);
+        return value;
+    }
+
+    /**
+     * Retrieves the value for the key.
+     * @param key The key for the value to retrieve
+     * @return The value for the key
+     * @throws NoSuchElementException When key is not in map
+     */
+    public V getValue(long key) throws NoSuchElementException {
+        return findExisting(key).value;
+    }
+
+    /**
+     * Checks if a key is in the map.
+     * @param key The key to check
+     * @return true if the key is in the map, false otherwise
+     */
+    public boolean containsKey(long key) {
+        return findNode(key) != null;
+    }
+
+    /**
+     * Iterates over the keys in order, without boxing them.
+     * @return keys in order
+     */
+    public PrimitiveIterator.OfLong keyIterator() {
+        return new KeyIterator();
+    }
+
+    /**
+     * Finds the entry for the key, or the entry with the next higher key.
+     * @param key The key to find
+     * @return The entry for the key or the next higher, or null if there is none
+     */
+    public LongEntry<V> higherOrEqualEntry(long key) {
+        return nearest(key, true, true);
+    }
+
+    /**
+     * Finds the entry for the key, or the entry with the next lower key.
+     * @param key The key to find
+     * @return The entry for the key or the next lower, or null if there is none
+     */
+    public LongEntry<V> lowerOrEqualEntry(long key) {
+        return nearest(key, false, true);
+    }
+
+    /**
+     * Finds the entry with the lowest key that is strictly higher than the key.
+     * @param key The key to compare with
+     * @return The next higher entry, or null if there is none
+     */
+    public LongEntry<V> higherEntry(long key) {
+        return nearest(key, true, false);
+    }
+
+    /**
+     * Finds the entry with the highest key that is strictly lower than the key.
+     * @param key The key to compare with
+     * @return The next lower entry, or null if there is none
+     */
+    public LongEntry<V> lowerEntry(long key) {
+        return nearest(key, false, false);
+    }
+
+    /**
+     * Adds all entries in the other map into this map. If a key is present in both
+     * maps, the value in the other map takes precedent.
+     * @param other The map to add to the current map
+     */
+    public void merge(LongSortedTreeMap<V> other) {
+        if (other == this) {
+            return;
+        }
+        for (LongEntry<V> entry : other.entries()) {
+            add(entry.key, entry.value);
+        }
+    }
+
+    /**
+     * Removes any entry for which the predicate holds true.
+     * @param p The predicate that tests which entries should be removed
+     */
+    public void removeIf(KeyValuePredicate<V> p) {
+        ArrayList<LongEntry<V>> doomed = new ArrayList<>();
+        for (LongEntry<V> entry : entries()) {
+            if (p.test(entry.key, entry.value)) {
+                doomed.add(entry);
+            }
+        }
+        for (LongEntry<V> entry : doomed) {
+            deleteEntry(entry);
+        }
+    }
+
+    private LongEntry<V> findNode(long key) {
+        LongEntry<V> current = root;
+        while (!isNil(current)) {
+            if (key > current.key) {
+                current = current.rightChild;
+            }
+            else if (key < current.key) {
+                current = current.leftChild;
+            }
+            else {
+                return current;
+            }
+        }
+        return null;
+    }
+
+    private LongEntry<V> findExisting(long key) throws NoSuchElementException {
+        LongEntry<V> entry = findNode(key);
+        if (entry == null) {
+            throw new NoSuchElementException("The key is not in the tree");
+        }
+        return entry;
+    }
+
+    private LongEntry<V> nearest(long key, boolean higher, boolean inclusive) {
+        LongEntry<V> current = root;
+        LongEntry<V> candidate = null;
+
+        while (!isNil(current)) {
+            if (key == current.key && inclusive) {
+                return current;
+            }
+            if (higher) {
+                if (key < current.key) {
+                    candidate = current;
+                    current = current.leftChild;
+                }
+                else {
+                    current = current.rightChild;
+                }
+            }
+            else {
+                if (key > current.key) {
+                    candidate = current;
+                    current = current.rightChild;
+                }
+                else {
+                    current = current.leftChild;
+                }
+            }
+        }
+        return candidate;
+    }
+
+    private class KeyIterator extends TreeIterator implements PrimitiveIterator.OfLong {
+        public long nextLong() {
+            return nextEntry().key;
+        }
+    }
+}
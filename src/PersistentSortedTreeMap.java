@@ -0,0 +1,480 @@
+/**
+ * Sorted map with O(1) snapshots through path copying.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * A sorted map whose tree nodes are never changed once built. A write copies only the
+ * nodes on the path from the root to the changed node, O(log n) of them, and shares
+ * every other node with the previous version. The tree is kept balanced as an AVL
+ * tree, whose rebalancing only ever touches nodes on that path.
+ *
+ * Because no version is ever changed, snapshot() is O(1): the snapshot shares the
+ * root. Old versions stay readable for as long as someone holds them, and are garbage
+ * collected like any other object when nobody does.
+ *
+ * Writes to one map are serialized with each other, but reads never take a lock: they
+ * run against whichever root was current when they started, so readers never block
+ * writers and vice versa. keys(), values() and entries() iterate over the version
+ * current when they were called, and never throw ConcurrentModificationException.
+ *
+ * Entries returned by this map are copies of the key and value. Setting the value of
+ * a returned entry does not change the map.
+ */
+public class PersistentSortedTreeMap<K extends Comparable<? super K>, V> implements ISortedTreeMap<K, V> {
+    private final Comparator<K> comparator;
+    private volatile Node<K, V> root;
+
+    // Passed up from the recursive writes, which only run under the lock.
+    private V oldValue;
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final Node<K, V> left;
+        final Node<K, V> right;
+        final int height;
+        final int size;
+
+        Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+
+        Node<K, V> withValue(V newValue) {
+            return new Node<>(key, newValue, left, right);
+        }
+    }
+
+    public PersistentSortedTreeMap(Comparator<K> kComparator) {
+        this(kComparator, null);
+    }
+
+    public PersistentSortedTreeMap() {
+        this(null, null);
+    }
+
+    private PersistentSortedTreeMap(Comparator<K> kComparator, Node<K, V> root) {
+        this.comparator = kComparator;
+        this.root = root;
+    }
+
+    /**
+     * Takes a snapshot of the map in O(1). The snapshot is an independent map: later
+     * writes to this map do not change the snapshot, and writes to the snapshot do not
+     * change this map.
+     * @return A map with the same entries as this one at the time of the call
+     */
+    public PersistentSortedTreeMap<K, V> snapshot() {
+        return new PersistentSortedTreeMap<>(comparator, root);
+    }
+
+    public Entry<K, V> min() {
+        Node<K, V> node = root;
+        if (node == null) {
+            return null;
+        }
+        while (node.left != null) {
+            node = node.left;
+        }
+        return entry(node);
+    }
+
+    public Entry<K, V> max() {
+        Node<K, V> node = root;
+        if (node == null) {
+            return null;
+        }
+        while (node.right != null) {
+            node = node.right;
+        }
+        return entry(node);
+    }
+
+    public synchronized V add(K key, V value) {
+        oldValue = null;
+        root = insert(root, key, value);
+        V previous = oldValue;
+        oldValue = null;
+        return previous;
+    }
+
+    public V add(Entry<K, V> entry) {
+        return add(entry.key, entry.value);
+    }
+
+    public synchronized void replace(K key, V value) throws NoSuchElementException {
+        root = update(root, key, node -> value);
+    }
+
+    public synchronized void replace(K key, BiFunction<K, V, V> f) throws NoSuchElementException {
+        root = update(root, key, node -> f.apply(node.key, node.value));
+    }
+
+    /**
+     * Computes a new value for the key while holding the lock of the writers, so that
+     * the read and the write of the value are atomic.
+     */
+    public synchronized V compute(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        return ISortedTreeMap.super.compute(key, f);
+    }
+
+    public synchronized V putIfAbsent(K key, V value) {
+        return ISortedTreeMap.super.putIfAbsent(key, value);
+    }
+
+    public synchronized V remove(Object key) throws NoSuchElementException {
+        oldValue = null;
+        root = delete(root, (K) key);
+        V removed = oldValue;
+        oldValue = null;
+        return removed;
+    }
+
+    public V getValue(Object key) throws NoSuchElementException {
+        Node<K, V> node = findNode((K) key);
+        if (node == null) {
+            throw new NoSuchElementException("The key is not in the tree");
+        }
+        return node.value;
+    }
+
+    public boolean containsKey(K key) {
+        return findNode(key) != null;
+    }
+
+    public boolean containsValue(V value) {
+        for (V v : values()) {
+            if (v.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Iterable<K> keys() {
+        Node<K, V> version = root;
+        return () -> new NodeIterator<K>(version) {
+            public K next() {
+                return nextNode().key;
+            }
+        };
+    }
+
+    public Iterable<V> values() {
+        Node<K, V> version = root;
+        return () -> new NodeIterator<V>(version) {
+            public V next() {
+                return nextNode().value;
+            }
+        };
+    }
+
+    public Iterable<Entry<K, V>> entries() {
+        Node<K, V> version = root;
+        return () -> new NodeIterator<Entry<K, V>>(version) {
+            public Entry<K, V> next() {
+                return entry(nextNode());
+            }
+        };
+    }
+
+    public Entry<K, V> higherOrEqualEntry(K key) {
+        return nearest(key, true, true);
+    }
+
+    public Entry<K, V> lowerOrEqualEntry(K key) {
+        return nearest(key, false, true);
+    }
+
+    public Entry<K, V> higherEntry(K key) {
+        return nearest(key, true, false);
+    }
+
+    public Entry<K, V> lowerEntry(K key) {
+        return nearest(key, false, false);
+    }
+
+    public ISortedTreeMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return new SubMap<>(this, comparator, fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    public ISortedTreeMap<K, V> headMap(K toKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, null, false, toKey, inclusive);
+    }
+
+    public ISortedTreeMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, fromKey, inclusive, null, false);
+    }
+
+    /**
+     * Adds all entries in the other map. Both maps are streamed in key order and a new
+     * balanced tree is built from the result in O(n + m). Snapshots taken before keep
+     * the old tree. If a key is present in both maps, the value in the other map takes
+     * precedent.
+     * @param other The map to add to the current map.
+     */
+    public void merge(ISortedTreeMap<K, V> other) {
+        if (other == this || other.isEmpty()) {
+            return;
+        }
+        ArrayList<Entry<K, V>> theirs = new ArrayList<>(other.size());
+        for (Entry<K, V> entry : other.entries()) {
+            theirs.add(entry);
+        }
+        synchronized (this) {
+            ArrayList<Entry<K, V>> merged = new ArrayList<>(size() + theirs.size());
+            Iterator<Entry<K, V>> ours = entries().iterator();
+            Entry<K, V> mine = ours.hasNext() ? ours.next() : null;
+            for (Entry<K, V> entry : theirs) {
+                while (mine != null && compare(mine.key, entry.key) <= 0) {
+                    if (compare(mine.key, entry.key) < 0) {
+                        merged.add(mine);
+                    }
+                    mine = ours.hasNext() ? ours.next() : null;
+                }
+                merged.add(entry);
+            }
+            while (mine != null) {
+                merged.add(mine);
+                mine = ours.hasNext() ? ours.next() : null;
+            }
+            root = build(merged, 0, merged.size() - 1);
+        }
+    }
+
+    /**
+     * Removes any entry for which the predicate holds true, by building a new balanced
+     * tree from the entries that are kept.
+     * @param p The predicate that tests which entries should be removed.
+     */
+    public synchronized void removeIf(BiPredicate<K, V> p) {
+        ArrayList<Entry<K, V>> kept = new ArrayList<>(size());
+        for (Entry<K, V> entry : entries()) {
+            if (!p.test(entry.key, entry.value)) {
+                kept.add(entry);
+            }
+        }
+        if (kept.size() < size()) {
+            root = build(kept, 0, kept.size() - 1);
+        }
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public synchronized void clear() {
+        root = null;
+    }
+
+    private Node<K, V> insert(Node<K, V> node, K key, V value) {
+        if (node == null) {
+            return new Node<>(key, value, null, null);
+        }
+        int compare = compare(key, node.key);
+        if (compare < 0) {
+            return balance(node.key, node.value, insert(node.left, key, value), node.right);
+        }
+        if (compare > 0) {
+            return balance(node.key, node.value, node.left, insert(node.right, key, value));
+        }
+        oldValue = node.value;
+        return node.withValue(value);
+    }
+
+    /**
+     * Copies the path to the key, with the value at the key replaced by f.
+     */
+    private Node<K, V> update(Node<K, V> node, K key, Function<Node<K, V>, V> f) {
+        if (node == null) {
+            throw new NoSuchElementException("The key is not in the tree");
+        }
+        int compare = compare(key, node.key);
+        if (compare < 0) {
+            return new Node<>(node.key, node.value, update(node.left, key, f), node.right);
+        }
+        if (compare > 0) {
+            return new Node<>(node.key, node.value, node.left, update(node.right, key, f));
+        }
+        return node.withValue(f.apply(node));
+    }
+
+    private Node<K, V> delete(Node<K, V> node, K key) {
+        if (node == null) {
+            throw new NoSuchElementException("The key is not in the tree");
+        }
+        int compare = compare(key, node.key);
+        if (compare < 0) {
+            return balance(node.key, node.value, delete(node.left, key), node.right);
+        }
+        if (compare > 0) {
+            return balance(node.key, node.value, node.left, delete(node.right, key));
+        }
+        oldValue = node.value;
+        if (node.left == null) {
+            return node.right;
+        }
+        if (node.right == null) {
+            return node.left;
+        }
+        Node<K, V> successor = node.right;
+        while (successor.left != null) {
+            successor = successor.left;
+        }
+        return balance(successor.key, successor.value, node.left, deleteMin(node.right));
+    }
+
+    private Node<K, V> deleteMin(Node<K, V> node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        return balance(node.key, node.value, deleteMin(node.left), node.right);
+    }
+
+    /**
+     * Creates a node from the parts, rotating if the heights of the two subtrees
+     * differ by two.
+     */
+    private Node<K, V> balance(K key, V value, Node<K, V> left, Node<K, V> right) {
+        int difference = height(left) - height(right);
+        if (difference > 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node<>(left.key, left.value, left.left, new Node<>(key, value, left.right, right));
+            }
+            Node<K, V> middle = left.right;
+            return new Node<>(middle.key, middle.value,
+                    new Node<>(left.key, left.value, left.left, middle.left),
+                    new Node<>(key, value, middle.right, right));
+        }
+        if (difference < -1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node<>(right.key, right.value, new Node<>(key, value, left, right.left), right.right);
+            }
+            Node<K, V> middle = right.left;
+            return new Node<>(middle.key, middle.value,
+                    new Node<>(key, value, left, middle.left),
+                    new Node<>(right.key, right.value, middle.right, right.right));
+        }
+        return new Node<>(key, value, left, right);
+    }
+
+    /**
+     * Builds a perfectly balanced tree from sorted entries in linear time.
+     */
+    private Node<K, V> build(ArrayList<Entry<K, V>> sorted, int lo, int hi) {
+        if (lo > hi) {
+            return null;
+        }
+        int mid = (lo + hi) >>> 1;
+        Entry<K, V> entry = sorted.get(mid);
+        return new Node<>(entry.key, entry.value, build(sorted, lo, mid - 1), build(sorted, mid + 1, hi));
+    }
+
+    private Node<K, V> findNode(K key) {
+        Node<K, V> current = root;
+        while (current != null) {
+            int compare = compare(key, current.key);
+            if (compare < 0) {
+                current = current.left;
+            }
+            else if (compare > 0) {
+                current = current.right;
+            }
+            else {
+                return current;
+            }
+        }
+        return null;
+    }
+
+    private Entry<K, V> nearest(K key, boolean higher, boolean inclusive) {
+        Node<K, V> current = root;
+        Node<K, V> candidate = null;
+        while (current != null) {
+            int compare = compare(key, current.key);
+            if (compare == 0 && inclusive) {
+                return entry(current);
+            }
+            if (higher ? compare < 0 : compare <= 0) {
+                if (higher) {
+                    candidate = current;
+                }
+                current = current.left;
+            }
+            else {
+                if (!higher) {
+                    candidate = current;
+                }
+                current = current.right;
+            }
+        }
+        return candidate == null ? null : entry(candidate);
+    }
+
+    private static int height(Node<?, ?> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static int size(Node<?, ?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private Entry<K, V> entry(Node<K, V> node) {
+        return new Entry<>(node.key, node.value);
+    }
+
+    private int compare(K a, K b) {
+        if (comparator != null) {
+            return comparator.compare(a, b);
+        }
+        return a.compareTo(b);
+    }
+
+    /**
+     * In-order iterator over one version of the tree. The nodes never change, so it
+     * keeps its own stack of the ancestors still to visit.
+     */
+    private abstract class NodeIterator<T> implements Iterator<T> {
+        private final ArrayDeque<Node<K, V>> stack = new ArrayDeque<>();
+
+        NodeIterator(Node<K, V> root) {
+            pushLeft(root);
+        }
+
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        Node<K, V> nextNode() {
+            if (stack.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Node<K, V> node = stack.pop();
+            pushLeft(node.right);
+            return node;
+        }
+
+        private void pushLeft(Node<K, V> node) {
+            for (; node != null; node = node.left) {
+                stack.push(node);
+            }
+        }
+    }
+}
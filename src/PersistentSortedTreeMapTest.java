@@ -0,0 +1,53 @@
+import fj.test.Property;
+import fj.test.runner.PropertyTestRunner;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static fj.test.Arbitrary.*;
+import static fj.test.Property.*;
+
+@RunWith(PropertyTestRunner.class)
+public class PersistentSortedTreeMapTest {
+
+    /**
+     * Check PersistentSortedTreeMap against java.util.TreeMap on random operations.
+     */
+    public Property behaves_like_tree_map() {
+        return SortedTreeMapTest.behavesLikeTreeMap(PersistentSortedTreeMap::new);
+    }
+
+    /**
+     * Check that a snapshot keeps the entries the map had when it was taken however the
+     * map is changed afterwards, and that changing the snapshot leaves the map alone.
+     */
+    public Property snapshot_is_unaffected_by_writes() {
+        return property(arbList(arbInteger), arbList(arbInteger), (first, second) -> {
+            PersistentSortedTreeMap<Integer, Integer> tm = new PersistentSortedTreeMap<>();
+            first.foreachDoEffect(key -> tm.add(key, key));
+            List<Entry<Integer, Integer>> before = toList(tm.entries());
+
+            PersistentSortedTreeMap<Integer, Integer> snapshot = tm.snapshot();
+            second.foreachDoEffect(key -> {
+                if (tm.containsKey(key)) {
+                    tm.remove(key);
+                }
+                else {
+                    tm.add(key, -key);
+                }
+            });
+            List<Entry<Integer, Integer>> after = toList(tm.entries());
+            boolean snapshotKept = toList(snapshot.entries()).equals(before) && snapshot.size() == before.size();
+
+            snapshot.clear();
+            return prop(snapshotKept && toList(tm.entries()).equals(after));
+        });
+    }
+
+    private static <T> List<T> toList(Iterable<T> iterable) {
+        List<T> list = new ArrayList<>();
+        iterable.forEach(list::add);
+        return list;
+    }
+}
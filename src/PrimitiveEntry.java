@@ -0,0 +1,24 @@
+/**
+ * Tree links and value of an entry with a primitive key.
+ */
+
+/**
+ * The part of IntEntry and LongEntry that does not depend on the type of the key, so
+ * that PrimitiveSortedTreeMap can link and rebalance either kind of entry.
+ */
+public abstract class PrimitiveEntry<E extends PrimitiveEntry<E, V>, V> {
+
+    public V value;
+    public E leftChild;
+    public E rightChild;
+    public E parent;
+    public boolean color = Entry.BLACK;
+
+    public V getValue() {
+        return value;
+    }
+
+    public void setValue(V value) {
+        this.value = value;
+    }
+}
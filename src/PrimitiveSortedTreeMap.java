@@ -0,0 +1,376 @@
+/**
+ * Red-black tree shared by the sorted maps with primitive keys.
+ */
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The part of IntSortedTreeMap and LongSortedTreeMap that does not look at keys:
+ * linking, rebalancing, removing a found entry, and iterating in order. The
+ * subclasses search by their own primitive key, so no key is boxed or compared through
+ * an interface.
+ */
+abstract class PrimitiveSortedTreeMap<E extends PrimitiveEntry<E, V>, V> {
+    final E nil;
+    E root;
+    int size;
+    int modCount;
+
+    PrimitiveSortedTreeMap(E nil) {
+        this.nil = nil;
+        nil.leftChild = nil;
+        nil.rightChild = nil;
+        nil.parent = nil;
+        root = nil;
+    }
+
+    /**
+     * Finds the entry with the lowest key.
+     * @return minimum entry, or null if the map is empty
+     */
+    public E min() {
+        return isNil(root) ? null : min(root);
+    }
+
+    /**
+     * Finds the entry with the highest key.
+     * @return maximum entry, or null if the map is empty
+     */
+    public E max() {
+        if (isNil(root)) {
+            return null;
+        }
+        E node = root;
+        while (!isNil(node.rightChild)) {
+            node = node.rightChild;
+        }
+        return node;
+    }
+
+    /**
+     * Hangs a new node below parent, or makes it the root if parent is nil, and
+     * rebalances.
+     * @param left Whether the node becomes the left child of parent
+     */
+    void link(E parent, E node, boolean left) {
+        node.parent = parent;
+        if (isNil(parent)) {
+            root = node;
+        }
+        else if (left) {
+            parent.leftChild = node;
+        }
+        else {
+            parent.rightChild = node;
+        }
+        node.leftChild = nil;
+        node.rightChild = nil;
+        node.color = Entry.RED;
+        insertFixup(node);
+
+        size++;
+        modCount++;
+    }
+
+    /**
+     * Checks if a value is in the map.
+     * @param value the value to look for
+     * @return True if the value is present, false otherwise
+     */
+    public boolean containsValue(V value) {
+        for (V v : values()) {
+            if (v.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the values in order of the keys.
+     * @return values in order of the keys
+     */
+    public Iterable<V> values() {
+        return ValueIterator::new;
+    }
+
+    /**
+     * Finds all entries in order of the keys.
+     * @return All entries in order of the keys
+     */
+    public Iterable<E> entries() {
+        return EntryIterator::new;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        root = nil;
+        size = 0;
+        modCount++;
+    }
+
+    boolean isNil(E node) {
+        return node == nil;
+    }
+
+    E min(E node) {
+        while (!isNil(node.leftChild)) {
+            node = node.leftChild;
+        }
+        return node;
+    }
+
+    private E successor(E node) {
+        if (!isNil(node.rightChild)) {
+            return min(node.rightChild);
+        }
+        E parent = node.parent;
+        while (!isNil(parent) && node == parent.rightChild) {
+            node = parent;
+            parent = parent.parent;
+        }
+        return isNil(parent) ? null : parent;
+    }
+
+    private void leftRotate(E node) {
+        E child = node.rightChild;
+        node.rightChild = child.leftChild;
+        if (!isNil(child.leftChild)) {
+            child.leftChild.parent = node;
+        }
+        child.parent = node.parent;
+        if (isNil(node.parent)) {
+            root = child;
+        }
+        else if (node == node.parent.leftChild) {
+            node.parent.leftChild = child;
+        }
+        else {
+            node.parent.rightChild = child;
+        }
+        child.leftChild = node;
+        node.parent = child;
+    }
+
+    private void rightRotate(E node) {
+        E child = node.leftChild;
+        node.leftChild = child.rightChild;
+        if (!isNil(child.rightChild)) {
+            child.rightChild.parent = node;
+        }
+        child.parent = node.parent;
+        if (isNil(node.parent)) {
+            root = child;
+        }
+        else if (node == node.parent.rightChild) {
+            node.parent.rightChild = child;
+        }
+        else {
+            node.parent.leftChild = child;
+        }
+        child.rightChild = node;
+        node.parent = child;
+    }
+
+    private void insertFixup(E node) {
+        while (node.parent.color == Entry.RED) {
+            E grandParent = node.parent.parent;
+            if (node.parent == grandParent.leftChild) {
+                E uncle = grandParent.rightChild;
+                if (uncle.color == Entry.RED) {
+                    node.parent.color = Entry.BLACK;
+                    uncle.color = Entry.BLACK;
+                    grandParent.color = Entry.RED;
+                    node = grandParent;
+                }
+                else {
+                    if (node == node.parent.rightChild) {
+                        node = node.parent;
+                        leftRotate(node);
+                    }
+                    node.parent.color = Entry.BLACK;
+                    node.parent.parent.color = Entry.RED;
+                    rightRotate(node.parent.parent);
+                }
+            }
+            else {
+                E uncle = grandParent.leftChild;
+                if (uncle.color == Entry.RED) {
+                    node.parent.color = Entry.BLACK;
+                    uncle.color = Entry.BLACK;
+                    grandParent.color = Entry.RED;
+                    node = grandParent;
+                }
+                else {
+                    if (node == node.parent.leftChild) {
+                        node = node.parent;
+                        rightRotate(node);
+                    }
+                    node.parent.color = Entry.BLACK;
+                    node.parent.parent.color = Entry.RED;
+                    leftRotate(node.parent.parent);
+                }
+            }
+        }
+        root.color = Entry.BLACK;
+    }
+
+    private void transplant(E oldNode, E newNode) {
+        if (isNil(oldNode.parent)) {
+            root = newNode;
+        }
+        else if (oldNode == oldNode.parent.leftChild) {
+            oldNode.parent.leftChild = newNode;
+        }
+        else {
+            oldNode.parent.rightChild = newNode;
+        }
+        newNode.parent = oldNode.parent;
+    }
+
+    void deleteEntry(E node) {
+        E moved = node;
+        boolean movedColor = moved.color;
+        E replacement;
+
+        if (isNil(node.leftChild)) {
+            replacement = node.rightChild;
+            transplant(node, node.rightChild);
+        }
+        else if (isNil(node.rightChild)) {
+            replacement = node.leftChild;
+            transplant(node, node.leftChild);
+        }
+        else {
+            moved = min(node.rightChild);
+            movedColor = moved.color;
+            replacement = moved.rightChild;
+            if (moved.parent == node) {
+                replacement.parent = moved;
+            }
+            else {
+                transplant(moved, moved.rightChild);
+                moved.rightChild = node.rightChild;
+                moved.rightChild.parent = moved;
+            }
+            transplant(node, moved);
+            moved.leftChild = node.leftChild;
+            moved.leftChild.parent = moved;
+            moved.color = node.color;
+        }
+
+        if (movedColor == Entry.BLACK) {
+            deleteFixup(replacement);
+        }
+
+        node.leftChild = null;
+        node.rightChild = null;
+        node.parent = null;
+        nil.parent = nil;
+        size--;
+        modCount++;
+    }
+
+    private void deleteFixup(E node) {
+        while (node != root && node.color == Entry.BLACK) {
+            if (node == node.parent.leftChild) {
+                E sibling = node.parent.rightChild;
+                if (sibling.color == Entry.RED) {
+                    sibling.color = Entry.BLACK;
+                    node.parent.color = Entry.RED;
+                    leftRotate(node.parent);
+                    sibling = node.parent.rightChild;
+                }
+                if (sibling.leftChild.color == Entry.BLACK && sibling.rightChild.color == Entry.BLACK) {
+                    sibling.color = Entry.RED;
+                    node = node.parent;
+                }
+                else {
+                    if (sibling.rightChild.color == Entry.BLACK) {
+                        sibling.leftChild.color = Entry.BLACK;
+                        sibling.color = Entry.RED;
+                        rightRotate(sibling);
+                        sibling = node.parent.rightChild;
+                    }
+                    sibling.color = node.parent.color;
+                    node.parent.color = Entry.BLACK;
+                    sibling.rightChild.color = Entry.BLACK;
+                    leftRotate(node.parent);
+                    node = root;
+                }
+            }
+            else {
+                E sibling = node.parent.leftChild;
+                if (sibling.color == Entry.RED) {
+                    sibling.color = Entry.BLACK;
+                    node.parent.color = Entry.RED;
+                    rightRotate(node.parent);
+                    sibling = node.parent.leftChild;
+                }
+                if (sibling.rightChild.color == Entry.BLACK && sibling.leftChild.color == Entry.BLACK) {
+                    sibling.color = Entry.RED;
+                    node = node.parent;
+                }
+                else {
+                    if (sibling.leftChild.color == Entry.BLACK) {
+                        sibling.rightChild.color = Entry.BLACK;
+                        sibling.color = Entry.RED;
+                        leftRotate(sibling);
+                        sibling = node.parent.leftChild;
+                    }
+                    sibling.color = node.parent.color;
+                    node.parent.color = Entry.BLACK;
+                    sibling.leftChild.color = Entry.BLACK;
+                    rightRotate(node.parent);
+                    node = root;
+                }
+            }
+        }
+        node.color = Entry.BLACK;
+    }
+
+    /**
+     * In-order iterator that steps through the parent links and fails fast.
+     */
+    abstract class TreeIterator {
+        private E next = min();
+        private final int expectedModCount = modCount;
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        E nextEntry() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            E entry = next;
+            next = successor(next);
+            return entry;
+        }
+    }
+
+    private class ValueIterator extends TreeIterator implements Iterator<V> {
+        public V next() {
+            return nextEntry().value;
+        }
+    }
+
+    private class EntryIterator extends TreeIterator implements Iterator<E> {
+        public E next() {
+            return nextEntry();
+        }
+    }
+}
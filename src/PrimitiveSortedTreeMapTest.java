@@ -0,0 +1,109 @@
+import fj.*;
+import fj.data.List;
+import fj.data.Set;
+import fj.test.Gen;
+import fj.test.Property;
+import fj.test.runner.PropertyTestRunner;
+import org.junit.runner.RunWith;
+
+import java.util.PrimitiveIterator;
+
+import static fj.Equal.*;
+import static fj.Ord.*;
+import static fj.test.Arbitrary.*;
+import static fj.test.Property.*;
+
+@RunWith(PropertyTestRunner.class)
+public class PrimitiveSortedTreeMapTest {
+
+    /**
+     * Generator for a list of distinct Longs in random order
+     */
+    private static final Gen<List<Long>> longList = arbList(arbLong)
+            .map(list -> Set.iterableSet(longOrd, list).toList())
+            .bind(Gen::somePermutationOf);
+
+    /**
+     * Generator for a list of distinct Integers in random order
+     */
+    private static final Gen<List<Integer>> intList = arbList(arbInteger)
+            .map(list -> Set.iterableSet(intOrd, list).toList())
+            .bind(Gen::somePermutationOf);
+
+    /**
+     * Check that the keys of a LongSortedTreeMap come out sorted, and that every key
+     * maps to its value.
+     */
+    public Property long_keys_sorted() {
+        return property(longList, keys -> {
+            LongSortedTreeMap<String> tm = new LongSortedTreeMap<>();
+            keys.foreachDoEffect(key -> tm.add(key, key.toString()));
+
+            List<Long> sorted = List.nil();
+            PrimitiveIterator.OfLong iterator = tm.keyIterator();
+            while (iterator.hasNext()) {
+                sorted = sorted.cons(iterator.nextLong());
+            }
+
+            return prop(listEqual(longEqual).eq(sorted.reverse(), keys.sort(longOrd))
+                    && tm.size() == keys.length()
+                    && keys.forall(key -> tm.getValue(key).equals(key.toString())));
+        });
+    }
+
+    /**
+     * Check floor and ceiling lookups on a LongSortedTreeMap.
+     */
+    public Property long_higher_and_lower() {
+        return property(longList, arbLong, (keys, key) -> {
+            LongSortedTreeMap<String> tm = new LongSortedTreeMap<>();
+            keys.foreachDoEffect(k -> tm.add(k, ""));
+
+            Long higher = keys.sort(longOrd).dropWhile(k -> k < key).headOption().toNull();
+            Long lower = keys.sort(longOrd.reverse()).dropWhile(k -> k >= key).headOption().toNull();
+            LongEntry<String> higherEntry = tm.higherOrEqualEntry(key);
+            LongEntry<String> lowerEntry = tm.lowerEntry(key);
+
+            boolean higherOk = higher == null ? higherEntry == null : higherEntry != null && higherEntry.key == higher;
+            boolean lowerOk = lower == null ? lowerEntry == null : lowerEntry != null && lowerEntry.key == lower;
+            return prop(higherOk && lowerOk);
+        });
+    }
+
+    /**
+     * Check that removing half of the keys of an IntSortedTreeMap leaves the other half.
+     */
+    public Property int_remove_half() {
+        return property(intList, keys -> {
+            IntSortedTreeMap<Integer> tm = new IntSortedTreeMap<>();
+            keys.foreachDoEffect(key -> tm.add(key, key));
+
+            List<Integer> removed = keys.take(keys.length() / 2);
+            boolean values = removed.forall(key -> tm.remove(key).equals(key));
+
+            return prop(values
+                    && tm.size() == keys.length() - removed.length()
+                    && removed.forall(key -> !tm.containsKey(key))
+                    && keys.drop(removed.length()).forall(tm::containsKey));
+        });
+    }
+
+    /**
+     * Check that removeIf on an IntSortedTreeMap keeps exactly the keys the predicate rejects.
+     */
+    public Property int_remove_if() {
+        return property(intList, keys -> {
+            IntSortedTreeMap<Integer> tm = new IntSortedTreeMap<>();
+            keys.foreachDoEffect(key -> tm.add(key, key));
+
+            tm.removeIf((key, value) -> key % 3 == 0);
+
+            List<Integer> kept = List.nil();
+            PrimitiveIterator.OfInt iterator = tm.keyIterator();
+            while (iterator.hasNext()) {
+                kept = kept.cons(iterator.nextInt());
+            }
+            return prop(listEqual(intEqual).eq(kept.reverse(), keys.filter(key -> key % 3 != 0).sort(intOrd)));
+        });
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Binary snapshot files of sorted maps.
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads and writes the entries of a map in key order. The format, all big-endian, is
+ *
+ * <pre>
+ *     int    magic, "STMS"
+ *     int    version, currently 1
+ *     int    number of entries
+ *     entries, each the key and then the value as written by their codecs
+ * </pre>
+ *
+ * A snapshot is written to a temporary file next to the target, forced to disk and
+ * then moved over the target, and the directory is forced after the move, so a crash
+ * leaves either the old or the new snapshot.
+ * It is read by memory-mapping the file, so the entries are decoded straight from the
+ * page cache, one at a time, as the tree is built.
+ */
+final class SnapshotFile {
+    static final int MAGIC = 0x53544D53;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 3 * Integer.BYTES;
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Writes a snapshot of the entries, which must be in strictly increasing key order.
+     * @param count The number of entries
+     * @throws IOException When the file cannot be written
+     * @throws IllegalStateException When entries does not have count entries
+     */
+    static <K, V> void write(Path path, Iterable<? extends Entry<K, V>> entries, int count,
+                             Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(count);
+            int written = 0;
+            for (Entry<K, V> entry : entries) {
+                int bytes = keyCodec.size(entry.key) + valueCodec.size(entry.value);
+                if (bytes > buffer.remaining()) {
+                    flush(buffer, channel);
+                    if (bytes > buffer.capacity()) {
+                        buffer = ByteBuffer.allocateDirect(bytes);
+                    }
+                }
+                keyCodec.write(entry.key, buffer);
+                valueCodec.write(entry.value, buffer);
+                written++;
+            }
+            flush(buffer, channel);
+            if (written != count) {
+                throw new IllegalStateException("Expected " + count + " entries, got " + written);
+            }
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        try {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        forceDirectory(path);
+    }
+
+    /**
+     * Forces the directory holding the file to disk, so that a file just created,
+     * renamed into it or deleted from it stays that way after a crash.
+     */
+    static void forceDirectory(Path file) throws IOException {
+        try (FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Maps a snapshot into memory and checks its header.
+     * @throws IOException When the file cannot be read, is not a snapshot, has an
+     * unsupported version or is too large to map
+     */
+    static <K, V> Reader<K, V> open(Path path, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large to map: " + path);
+            }
+            // The mapping stays valid after the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a snapshot: " + path);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + ": " + path);
+        }
+        int count = buffer.getInt();
+        if (count < 0) {
+            throw new IOException("Negative entry count in snapshot: " + path);
+        }
+        return new Reader<>(path, buffer, count, keyCodec, valueCodec);
+    }
+
+    /**
+     * Decodes the entries of a mapped snapshot in key order. A truncated file shows up
+     * as an UncheckedIOException from next.
+     */
+    static final class Reader<K, V> implements Iterator<Entry<K, V>> {
+        final int count;
+        private final Path path;
+        private final ByteBuffer buffer;
+        private final Codec<K> keyCodec;
+        private final Codec<V> valueCodec;
+        private int read;
+
+        private Reader(Path path, ByteBuffer buffer, int count, Codec<K> keyCodec, Codec<V> valueCodec) {
+            this.path = path;
+            this.buffer = buffer;
+            this.count = count;
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+        }
+
+        public boolean hasNext() {
+            return read < count;
+        }
+
+        public Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                K key = keyCodec.read(buffer);
+                V value = valueCodec.read(buffer);
+                read++;
+                return new Entry<>(key, value);
+            } catch (BufferUnderflowException e) {
+                throw new UncheckedIOException(new IOException("Truncated snapshot after " + read
+                        + " of " + count + " entries: " + path));
+            }
+        }
+    }
+}
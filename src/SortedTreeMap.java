@@ -3,9 +3,19 @@
  */
 
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 
@@ -13,21 +23,69 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
     private Entry<K, V> nil = new Entry<K, V>();
     private Entry<K, V> root = nil;
     private int size;
+    private int modCount;
     private Comparator<K> comparator;
+    private ValueIndex<K, V> valueIndex;
+    private HashMap<K, Entry<K, V>> keyIndex;
+
+    // Below this many entries, the parallel merge and build run sequentially.
+    static final int PARALLEL_THRESHOLD = 1 << 13;
+
+    private static final int VALUE_CHARACTERISTICS =
+            Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED;
+    private static final int KEY_CHARACTERISTICS =
+            VALUE_CHARACTERISTICS | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL;
 
     public SortedTreeMap(Comparator<K> kComparator) {
-        root = nil;
-        size = 0;
+        this();
         comparator = kComparator;
     }
 
     public SortedTreeMap() {
-        root.leftChild = nil;
-        root.rightChild = nil;
-        root.parent = nil;
+        nil.leftChild = nil;
+        nil.rightChild = nil;
+        nil.parent = nil;
+        nil.color = Entry.BLACK;
+        root = nil;
         size = 0;
     }
 
+    /**
+     * Creates a map from entries that are already sorted by key. The tree is built
+     * perfectly balanced in linear time, without comparing any keys unless
+     * checkSorted is set.
+     * @param sorted entries in strictly increasing key order
+     * @param size number of entries to take from sorted
+     * @param kComparator ordering of the keys, or null for their natural ordering
+     * @param checkSorted whether to verify that the keys are strictly increasing
+     * @throws IllegalArgumentException When sorted has fewer than size entries, or
+     * checkSorted is set and the keys are not strictly increasing
+     */
+    public SortedTreeMap(Iterator<? extends Entry<K, V>> sorted, int size, Comparator<K> kComparator,
+                         boolean checkSorted) throws IllegalArgumentException {
+        this(kComparator);
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size: " + size);
+        }
+        try {
+            buildFromSorted(checkSorted ? new CheckedIterator(sorted) : sorted, size);
+        } catch (NoSuchElementException e) {
+            throw new IllegalArgumentException("Fewer than " + size + " entries in the input");
+        }
+    }
+
+    /**
+     * Creates a map from entries that are already sorted by key, checking that they are.
+     * @param sorted entries in strictly increasing key order
+     * @param size number of entries in sorted
+     * @param kComparator ordering of the keys, or null for their natural ordering
+     * @throws IllegalArgumentException When the keys are not strictly increasing
+     */
+    public SortedTreeMap(Iterable<? extends Entry<K, V>> sorted, int size, Comparator<K> kComparator)
+            throws IllegalArgumentException {
+        this(sorted.iterator(), size, kComparator, true);
+    }
+
     /**
      * Finds the minimum key in the map, if no key is found, returns null instead.
      *
@@ -50,15 +108,13 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
      * @return minimum key
      */
     public Entry<K, V> min(Entry<K,V> node) {
-        Entry<K, V> minKey = node;
-        if (node.leftChild == null) {
-            return minKey;
+        if (isNil(node)) {
+            return null;
         }
-        while (node.leftChild != nil) {
-            minKey = node.leftChild;
+        while (!isNil(node.leftChild)) {
             node = node.leftChild;
         }
-        return minKey;
+        return node;
     }
 
     /**
@@ -88,43 +144,14 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
      */
     @Override
     public V add(K key, V value) {
-
-        Entry<K, V> newEntry = new Entry<K, V>(key, value);
-        V returnValue;
-        Entry<K, V> futureParent = nil;
-        Entry<K, V> current = root;
-
-        while (!isNil(current)) {
-                futureParent = current;
-                if (newEntry.key.compareTo(current.key) > 0) {
-                    current = current.rightChild;
-                }
-                else if (newEntry.key.compareTo(current.key) < 0) {
-                    current = current.leftChild;
-                }
-                else if (newEntry.key.compareTo(current.key) == 0) {
-                    returnValue = current.value;
-                    current.value = newEntry.value;
-                    return returnValue;
-                }
-        }
-
-        newEntry.parent = futureParent;
-
-        if (isNil(futureParent)) {
-            root = newEntry;
-        }
-        else if (newEntry.key.compareTo(futureParent.key) < 0) {
-            futureParent.leftChild = newEntry;
+        Entry<K, V> node = descend(key);
+        int compare = isNil(node) ? 0 : compare(key, node.key);
+        if (!isNil(node) && compare == 0) {
+            V returnValue = node.value;
+            setValue(node, value);
+            return returnValue;
         }
-        else {
-            futureParent.rightChild = newEntry;
-        }
-
-        newEntry.leftChild = nil;
-        newEntry.rightChild = nil;
-
-        size++;
+        link(key, value, node, compare);
         return null;
     }
 
@@ -148,12 +175,7 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
      * @throws NoSuchElementException When key is not in map
      */
     public void replace(K key, V value) throws NoSuchElementException {
-        if (!isInTree(key)) {
-            throw new NoSuchElementException("The key is not in the tree");
-        }
-        else {
-            add(key,value);
-        }
+        setValue(findExisting(key), value);
     }
 
     /**
@@ -165,61 +187,125 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
      * @throws NoSuchElementException When key is not in map
      */
     public void replace(K key, BiFunction<K, V, V> f) throws NoSuchElementException {
-        Entry<K,V> valueToReplace = findNode(key);
-        if (!isInTree(key)){
-            throw new NoSuchElementException("The key is not in the tree");
-        }
-        else {
-            valueToReplace.value = f.apply(valueToReplace.key, valueToReplace.value);
-            add(valueToReplace.key, valueToReplace.value);
-        }
+        Entry<K, V> entry = findExisting(key);
+        setValue(entry, f.apply(entry.key, entry.value));
     }
 
     /**
-     * Removes the entry for key in the map. Throws an exception if the key is not present
-     * in the map.
+     * Computes a new value for the key from its current value, or from null if the key
+     * is not present, in a single search. If the function returns null, the entry is
+     * removed, or not added. A new node is only allocated when the key is added.
      *
-     * @param key The key for the entry to remove
-     * @return The removed value
-     * @throws NoSuchElementException When key is not in map.
+     * @param key The key to compute a value for
+     * @param f   The function from the key and its current value, or null, to the new value
+     * @return The new value, or null if there is none
+     * @throws ConcurrentModificationException When the function changes the map
      */
-    public V remove(Object key) throws NoSuchElementException {
-        V valueToRemove = getValue(key);
-        if (containsKey((K) key)) {
-            root = entryToRemove((K) key, root);
-            size--;
-            return valueToRemove;
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        int expectedModCount = modCount;
+        Entry<K, V> node = descend(key);
+        int compare = isNil(node) ? 0 : compare(key, node.key);
+        if (!isNil(node) && compare == 0) {
+            return update(node, f.apply(node.key, node.value), expectedModCount);
         }
-        else {
-            throw new NoSuchElementException("The key is not in the tree..");
+        V value = f.apply(key, null);
+        return insert(key, value, node, compare, expectedModCount);
+    }
+
+    /**
+     * Adds the value computed by the function if the key is not present, in a single
+     * search. Nothing is added if the function returns null.
+     *
+     * @param key The key to look for
+     * @param f   The function from the key to the value to add
+     * @return The current value for the key, or null if there is none
+     * @throws ConcurrentModificationException When the function changes the map
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> f) {
+        int expectedModCount = modCount;
+        Entry<K, V> node = descend(key);
+        int compare = isNil(node) ? 0 : compare(key, node.key);
+        if (!isNil(node) && compare == 0) {
+            return node.value;
         }
+        V value = f.apply(key);
+        return insert(key, value, node, compare, expectedModCount);
     }
 
-    public Entry<K, V> entryToRemove(K key, Entry<K,V> entry){
-        if (entry == nil) {
+    /**
+     * Computes a new value for the key if it is present, in a single search. If the
+     * function returns null, the entry is removed.
+     *
+     * @param key The key to look for
+     * @param f   The function from the key and its current value to the new value
+     * @return The new value, or null if there is none
+     * @throws ConcurrentModificationException When the function changes the map
+     */
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        int expectedModCount = modCount;
+        Entry<K, V> node = findNode(key);
+        if (node == null) {
             return null;
         }
+        return update(node, f.apply(node.key, node.value), expectedModCount);
+    }
 
-        int compare = key.compareTo(entry.key);
-
-        if (compare < 0) {
-            entry.leftChild = (entryToRemove(key, entry.leftChild));
+    /**
+     * Adds the value for the key if the key is not present, in a single search.
+     *
+     * @param key   The key to look for
+     * @param value The value to add
+     * @return The current value for the key, or null if it was added
+     */
+    public V putIfAbsent(K key, V value) {
+        Entry<K, V> node = descend(key);
+        int compare = isNil(node) ? 0 : compare(key, node.key);
+        if (!isNil(node) && compare == 0) {
+            return node.value;
         }
-        else if (compare > 0) {
-            entry.rightChild = entryToRemove(key, entry.rightChild);
+        link(key, value, node, compare);
+        return null;
+    }
+
+    /**
+     * Adds the value if the key is not present, and otherwise combines the current value
+     * with it, in a single search. If the function returns null, the entry is removed.
+     *
+     * @param key   The key to merge the value into
+     * @param value The value to add or combine with the current value
+     * @param f     The function from the current value and the given value to the new value
+     * @return The new value, or null if there is none
+     * @throws NullPointerException When value is null
+     * @throws ConcurrentModificationException When the function changes the map
+     */
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> f) {
+        Objects.requireNonNull(value);
+        int expectedModCount = modCount;
+        Entry<K, V> node = descend(key);
+        int compare = isNil(node) ? 0 : compare(key, node.key);
+        if (!isNil(node) && compare == 0) {
+            return update(node, f.apply(node.value, value), expectedModCount);
         }
-        else {
-            if (entry.leftChild == nil) {
-                return entry.rightChild;
-            } else if (entry.rightChild == nil) {
-                return entry.leftChild;
-            }
+        link(key, value, node, compare);
+        return value;
+    }
 
-            entry.key = min(entry.rightChild).key;
-            entry.value = min(entry.rightChild).value;
-            entry.rightChild = (entryToRemove(entry.key, entry.rightChild));
+    /**
+     * Removes the entry for key in the map. Throws an exception if the key is not present
+     * in the map.
+     *
+     * @param key The key for the entry to remove
+     * @return The removed value
+     * @throws NoSuchElementException When key is not in map.
+     */
+    public V remove(Object key) throws NoSuchElementException {
+        Entry<K, V> entryToRemove = findNode((K) key);
+        if (entryToRemove == null) {
+            throw new NoSuchElementException("The key is not in the tree..");
         }
-        return entry;
+        V valueToRemove = entryToRemove.value;
+        deleteEntry(entryToRemove);
+        return valueToRemove;
     }
 
     /**
@@ -230,10 +316,11 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
      * @throws NoSuchElementException When key is not in map
      */
     public V getValue(Object key) throws NoSuchElementException {
-        if (!containsKey((K) key)) {
+        Entry<K, V> entry = findNode((K) key);
+        if (entry == null) {
             throw new NoSuchElementException("The key is not in the tree");
         }
-        return findNode((K) key).value;
+        return entry.value;
     }
 
     /**
@@ -243,10 +330,7 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
      * @return true if the key is in the map, false otherwise
      */
     public boolean containsKey(K key) {
-        if (isInTree(key)) {
-            return true;
-        }
-        return false;
+        return findNode(key) != null;
     }
 
     /**
@@ -256,27 +340,92 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
      * @return True if the value is present, false otherwise
      */
     public boolean containsValue(V value) {
-        ArrayList<K> keysInTree = new ArrayList<K>();
-        keysInTree = findKeysByEntry(root, keysInTree);
-
-        for (K key : keysInTree) {
-            if (findNode(key).value.equals(value)) {
+        if (valueIndex != null) {
+            return valueIndex.contains(value);
+        }
+        for (V v : values()) {
+            if (v.equals(value)) {
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Finds the keys that map to the value. This takes O(n) unless the value index is
+     * enabled, in which case it takes O(k log k) for k matching keys.
+     *
+     * @param value the value to look for
+     * @return The keys that map to the value, in order
+     */
+    public List<K> keysForValue(V value) {
+        if (valueIndex != null) {
+            return valueIndex.keysFor(value);
+        }
+        List<K> keys = new ArrayList<>();
+        for (Entry<K, V> entry : entries()) {
+            if (entry.value.equals(value)) {
+                keys.add(entry.key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Starts keeping a hash index from values to the keys that map to them, so that
+     * containsValue takes O(1) and keysForValue O(k log k) expected time. The index
+     * is built in O(n) and then kept in sync by every change to the map, at the cost
+     * of a hash update per change and memory per distinct value. The values must have
+     * a hashCode that agrees with equals. Changing the value of an entry directly,
+     * instead of through the map, leaves the index out of date.
+     */
+    public void enableValueIndex() {
+        if (valueIndex == null) {
+            valueIndex = new ValueIndex<>(comparator);
+            for (Entry<K, V> entry : entries()) {
+                valueIndex.add(entry.key, entry.value);
+            }
+        }
+    }
+
+    /**
+     * Stops keeping the value index and frees it.
+     */
+    public void disableValueIndex() {
+        valueIndex = null;
+    }
+
+    /**
+     * Starts keeping a hash table from every key to its node, next to the tree. getValue,
+     * containsKey, replace, remove and updates of keys that are present then find the
+     * node in O(1) expected time instead of searching the tree; adding a new key still
+     * searches the tree for its place, and ordered queries only use the tree. The table
+     * is built in O(n) and costs a hash update per added or removed key. The keys must
+     * have a hashCode and equals that agree with the ordering of the map.
+     */
+    public void enableKeyIndex() {
+        if (keyIndex == null) {
+            keyIndex = new HashMap<>(Math.max(16, (int) (size / 0.75f) + 1));
+            for (Entry<K, V> entry = min(); entry != null; entry = successor(entry)) {
+                keyIndex.put(entry.key, entry);
+            }
+        }
+    }
+
+    /**
+     * Stops keeping the key index and frees it.
+     */
+    public void disableKeyIndex() {
+        keyIndex = null;
+    }
+
     /**
      * Finds all the keys in the map and returns them in order.
      *
      * @return keys in order
      */
     public Iterable<K> keys() {
-        ArrayList<K> keys = new ArrayList<K>();
-        keys = findKeysByEntry(root, keys);
-        Collections.sort(keys);
-        return keys;
+        return KeyIterator::new;
     }
 
     public ArrayList<K> findKeysByEntry(Entry<K,V> current, ArrayList<K> key){
@@ -294,16 +443,7 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
      * @return values in order of the keys
      */
     public Iterable<V> values() {
-        ArrayList<V> values = new ArrayList<V>();
-        ArrayList<K> keys = new ArrayList<K>();
-
-        keys = findKeysByEntry(root, keys);
-
-        for (K key : keys) {
-            values.add(findNode(key).value);
-        }
-
-        return values;
+        return ValueIterator::new;
     }
 
     /**
@@ -312,16 +452,51 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
      * @return All entries in order of the keys
      */
     public Iterable<Entry<K, V>> entries() {
-        ArrayList<Entry<K,V>> orderedEntries = new ArrayList<>();
-        ArrayList<K> keys = new ArrayList<>();
+        return EntryIterator::new;
+    }
 
-        keys = findKeysByEntry(root, keys);
+    /**
+     * Streams the entries in key order. The stream splits by position in the sorted
+     * order, using the subtree sizes, so a parallel stream divides the tree evenly
+     * between threads without copying it first.
+     *
+     * @return A sequential stream of the entries
+     */
+    public Stream<Entry<K, V>> stream() {
+        return StreamSupport.stream(entrySpliterator(), false);
+    }
 
-        for (K key : keys) {
-            orderedEntries.add(findNode(key));
-        }
+    /**
+     * Streams the entries in key order, in parallel.
+     *
+     * @return A parallel stream of the entries
+     */
+    public Stream<Entry<K, V>> parallelStream() {
+        return StreamSupport.stream(entrySpliterator(), true);
+    }
+
+    private Spliterator<Entry<K, V>> entrySpliterator() {
+        return new TreeSpliterator<>(e -> e, KEY_CHARACTERISTICS, (a, b) -> compare(a.key, b.key));
+    }
+
+    /**
+     * Streams the keys in order. Call parallel() on the stream to aggregate in parallel.
+     *
+     * @return A sequential stream of the keys
+     */
+    public Stream<K> keyStream() {
+        return StreamSupport.stream(new TreeSpliterator<>(e -> e.key, KEY_CHARACTERISTICS, comparator), false);
+    }
 
-        return orderedEntries;
+    /**
+     * Streams the values in order of their keys. The values are neither sorted nor
+     * distinct, so unlike the keys and entries, the stream does not report so. Call
+     * parallel() on the stream to aggregate in parallel.
+     *
+     * @return A sequential stream of the values
+     */
+    public Stream<V> valueStream() {
+        return StreamSupport.stream(new TreeSpliterator<>(e -> e.value, VALUE_CHARACTERISTICS, null), false);
     }
 
     /**
@@ -332,19 +507,7 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
      * @return The entry for the key or the next highest
      */
     public Entry<K, V> higherOrEqualEntry(K key) {
-        ArrayList<K> keys = new ArrayList<>();
-
-        keys = findKeysByEntry(root, keys);
-
-        for (K key1 : keys) {
-            if (key1 == key) {
-                return findNode(key1);
-            }
-            else if ((Integer)key1 > (Integer) key){
-                return findNode(key1);
-            }
-        }
-        return null;
+        return nearest(key, true, true);
     }
 
     /**
@@ -355,53 +518,254 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
      * @return The entry for the key or the next lower
      */
     public Entry<K, V> lowerOrEqualEntry(K key) {
-        ArrayList<K> keys = new ArrayList<>();
+        return nearest(key, false, true);
+    }
 
-        keys = findKeysByEntry(root, keys);
-        Collections.reverse(keys);
+    /**
+     * Finds the entry with the lowest key that is strictly higher than the key.
+     *
+     * @param key The key to compare with
+     * @return The next higher entry, or null if no such entry exists
+     */
+    public Entry<K, V> higherEntry(K key) {
+        return nearest(key, true, false);
+    }
 
-        for (K key1 : keys) {
-            if (key1 == key){
-                return findNode(key1);
-            }
-            else if ((Integer) key1 < (Integer) key) {
-                return findNode(key1);
-            }
-        }
-        return null;
+    /**
+     * Finds the entry with the highest key that is strictly lower than the key.
+     *
+     * @param key The key to compare with
+     * @return The next lower entry, or null if no such entry exists
+     */
+    public Entry<K, V> lowerEntry(K key) {
+        return nearest(key, false, false);
+    }
+
+    /**
+     * Returns a view of the entries with keys from fromKey to toKey. The view seeks to
+     * its first entry in O(log n) and then steps through the tree, so iterating over k
+     * entries costs O(log n + k).
+     *
+     * @param fromKey The lower bound of the view
+     * @param fromInclusive true if the lower bound is part of the view
+     * @param toKey The upper bound of the view
+     * @param toInclusive true if the upper bound is part of the view
+     * @return A view of the entries in the range
+     */
+    public ISortedTreeMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return new RangeView(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    /**
+     * Returns a view of the entries with keys lower than toKey, backed by the map.
+     *
+     * @param toKey The upper bound of the view
+     * @param inclusive true if the upper bound is part of the view
+     * @return A view of the entries below the bound
+     */
+    public ISortedTreeMap<K, V> headMap(K toKey, boolean inclusive) {
+        return new RangeView(null, false, toKey, inclusive);
+    }
+
+    /**
+     * Returns a view of the entries with keys higher than fromKey, backed by the map.
+     *
+     * @param fromKey The lower bound of the view
+     * @param inclusive true if the lower bound is part of the view
+     * @return A view of the entries above the bound
+     */
+    public ISortedTreeMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return new RangeView(fromKey, inclusive, null, false);
     }
 
     /**
      * Adds all entries in the other map into the current map. If a key is present
-     * in both maps, the key in the other map takes precedent.
+     * in both maps, the key in the other map takes precedent. Both maps are streamed
+     * in key order and the result is built as a balanced tree in O(n + m).
      *
      * @param other The map to add to the current map.
      */
     public void merge(ISortedTreeMap<K, V> other) {
-        SortedTreeMap<K,V> otherTree = (SortedTreeMap<K, V>) other;
+        if (other == this || other.isEmpty()) {
+            return;
+        }
+        Iterator<Entry<K, V>> mine = entries().iterator();
+        Iterator<Entry<K, V>> theirs = other.entries().iterator();
+        ArrayList<Entry<K, V>> merged = new ArrayList<>(size + other.size());
 
-        for (Entry<K,V> node : otherTree.entries()) {
-            if (node != null) {
-                add(node.key, node.value);
+        // Both maps are walked once in key order, like the merge step of merge sort.
+        Entry<K, V> myEntry = mine.hasNext() ? mine.next() : null;
+        Entry<K, V> theirEntry = theirs.hasNext() ? theirs.next() : null;
+        while (myEntry != null && theirEntry != null) {
+            int compare = compare(myEntry.key, theirEntry.key);
+            if (compare < 0) {
+                merged.add(myEntry);
+                myEntry = mine.hasNext() ? mine.next() : null;
+            }
+            else {
+                // The entry in the other map takes precedent when the keys are equal.
+                if (compare == 0) {
+                    myEntry = mine.hasNext() ? mine.next() : null;
+                }
+                merged.add(theirEntry);
+                theirEntry = theirs.hasNext() ? theirs.next() : null;
+            }
+        }
+        while (myEntry != null) {
+            merged.add(myEntry);
+            myEntry = mine.hasNext() ? mine.next() : null;
+        }
+        while (theirEntry != null) {
+            merged.add(theirEntry);
+            theirEntry = theirs.hasNext() ? theirs.next() : null;
+        }
+
+        buildFromSorted(merged.iterator(), merged.size());
+    }
+
+    /**
+     * Adds all entries in the other map like merge, using all cores of the common
+     * ForkJoinPool. Both maps are cut into ranges at the same keys, found with select on
+     * the larger map and rank on both, so the ranges can be merged independently. The
+     * merged ranges are then built into one balanced tree, with the subtrees built in
+     * parallel. Small maps are merged sequentially.
+     *
+     * @param other The map to add to the current map. It must not change during the merge.
+     */
+    public void parallelMerge(SortedTreeMap<K, V> other) {
+        if (other == this || other.isEmpty()) {
+            return;
+        }
+        int total = size + other.size;
+        if (total < PARALLEL_THRESHOLD) {
+            merge(other);
+            return;
+        }
+
+        int parts = Math.max(1, Math.min(total / (PARALLEL_THRESHOLD / 2),
+                ForkJoinPool.getCommonPoolParallelism() * 4));
+        SortedTreeMap<K, V> larger = size >= other.size ? this : other;
+        int[] mine = new int[parts + 1];
+        int[] theirs = new int[parts + 1];
+        mine[parts] = size;
+        theirs[parts] = other.size;
+        for (int i = 1; i < parts; i++) {
+            K split = larger.select((int) ((long) i * larger.size / parts)).key;
+            mine[i] = countBelow(split, false);
+            theirs[i] = other.countBelow(split, false);
+        }
+
+        @SuppressWarnings("unchecked")
+        Entry<K, V>[][] merged = (Entry<K, V>[][]) new Entry<?, ?>[parts][];
+        int[] lengths = new int[parts];
+        IntStream.range(0, parts).parallel().forEach(i -> {
+            merged[i] = newEntries(mine[i + 1] - mine[i] + theirs[i + 1] - theirs[i]);
+            lengths[i] = mergeRange(mine[i], mine[i + 1], other, theirs[i], theirs[i + 1], merged[i]);
+        });
+
+        int[] offsets = new int[parts + 1];
+        for (int i = 0; i < parts; i++) {
+            offsets[i + 1] = offsets[i] + lengths[i];
+        }
+        Entry<K, V>[] sorted = newEntries(offsets[parts]);
+        IntStream.range(0, parts).parallel()
+                .forEach(i -> System.arraycopy(merged[i], 0, sorted, offsets[i], lengths[i]));
+        buildInParallel(sorted, sorted.length);
+    }
+
+    /**
+     * Creates a map from entries in any order, sorting them in parallel first and then
+     * building the tree in parallel. When several entries have the same key, the last
+     * one in the collection wins, as if they had been added in order.
+     *
+     * @param entries     The entries of the new map
+     * @param kComparator ordering of the keys, or null for their natural ordering
+     * @return A new map with the entries
+     */
+    public static <K extends Comparable<? super K>, V> SortedTreeMap<K, V> parallelBuild(
+            Collection<? extends Entry<K, V>> entries, Comparator<K> kComparator) {
+        SortedTreeMap<K, V> map = new SortedTreeMap<>(kComparator);
+        Entry<K, V>[] sorted = entries.toArray(newEntries(0));
+        // The sort is stable, so the last of several equal keys stays last.
+        Arrays.parallelSort(sorted, (a, b) -> map.compare(a.key, b.key));
+
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i + 1 < sorted.length && map.compare(sorted[i].key, sorted[i + 1].key) == 0) {
+                continue;
             }
+            sorted[count++] = sorted[i];
+        }
+        map.buildInParallel(sorted, count);
+        return map;
+    }
+
+    /**
+     * Writes the entries in key order to a binary snapshot file, replacing the file
+     * atomically. See SnapshotFile for the format.
+     *
+     * @param path       The file to write
+     * @param keyCodec   Encoding of the keys
+     * @param valueCodec Encoding of the values
+     * @throws IOException When the file cannot be written
+     */
+    public void save(Path path, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        SnapshotFile.write(path, entries(), size, keyCodec, valueCodec);
+    }
+
+    /**
+     * Reads a map written by save. The file is memory-mapped and the tree is built in
+     * linear time from the entries as they are decoded.
+     *
+     * @param path        The file to read
+     * @param keyCodec    Encoding of the keys, the same as they were saved with
+     * @param valueCodec  Encoding of the values, the same as they were saved with
+     * @param kComparator ordering of the keys, or null for their natural ordering
+     * @return The map in the file
+     * @throws IOException When the file cannot be read, is not a snapshot, is truncated,
+     * or its keys are not in strictly increasing order for the comparator
+     */
+    public static <K extends Comparable<? super K>, V> SortedTreeMap<K, V> load(
+            Path path, Codec<K> keyCodec, Codec<V> valueCodec, Comparator<K> kComparator) throws IOException {
+        SnapshotFile.Reader<K, V> reader = SnapshotFile.open(path, keyCodec, valueCodec);
+        try {
+            return new SortedTreeMap<>(reader, reader.count, kComparator, true);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Snapshot keys out of order: " + path, e);
         }
     }
 
     /**
      * Removes any entry for which the predicate holds true. The predicate can
-     * trigger on both the key and value of each entry.
+     * trigger on both the key and value of each entry. The predicate is tested once
+     * per entry in a single in-order pass; when many entries match, the survivors are
+     * rebuilt into a balanced tree in linear time instead of being deleted one by one.
      *
      * @param p The predicate that tests which entries should be kept.
      */
     public void removeIf(BiPredicate<K, V> p) {
-    ArrayList<Entry<K,V>> entries = new ArrayList<>();
-    entries = (ArrayList<Entry<K,V>>) entries();
+        ArrayList<Entry<K, V>> doomed = new ArrayList<>();
+        for (Entry<K, V> entry : entries()) {
+            if (p.test(entry.key, entry.value)) {
+                doomed.add(entry);
+            }
+        }
+        if (doomed.isEmpty()) {
+            return;
+        }
 
-    for (Entry<K,V> entry : entries) {
-        if (p.test(entry.key, entry.value)){
-            remove(entry.key);
+        // Each delete costs about log2(n) steps, while a rebuild costs n in total.
+        int depth = 32 - Integer.numberOfLeadingZeros(size);
+        if ((long) doomed.size() * depth < size) {
+            for (Entry<K, V> entry : doomed) {
+                deleteEntry(entry);
+            }
+        }
+        else {
+            buildFromSorted(new SurvivorIterator(doomed), size - doomed.size());
         }
-    }
     }
 
     /**
@@ -432,6 +796,62 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
     public void clear() {
         root = nil;
         size = 0;
+        modCount++;
+        if (valueIndex != null) {
+            valueIndex.clear();
+        }
+        if (keyIndex != null) {
+            keyIndex.clear();
+        }
+    }
+
+    /**
+     * Counts the keys in the map that are strictly lower than the key, which is also
+     * the position the key has or would have in the sorted order.
+     *
+     * @param key The key to find the rank of
+     * @return Number of keys lower than the key
+     */
+    public int rank(K key) {
+        return countBelow(key, false);
+    }
+
+    /**
+     * Finds the entry with the i-th lowest key, counting from 0.
+     *
+     * @param i The position of the entry in the sorted order
+     * @return The entry at the position
+     * @throws IndexOutOfBoundsException When i is negative or not lower than size()
+     */
+    public Entry<K, V> select(int i) throws IndexOutOfBoundsException {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+        }
+        Entry<K, V> current = root;
+        while (true) {
+            int leftSize = current.leftChild.size;
+            if (i < leftSize) {
+                current = current.leftChild;
+            }
+            else if (i > leftSize) {
+                i -= leftSize + 1;
+                current = current.rightChild;
+            }
+            else {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Counts the keys from lo, inclusive, to hi, exclusive.
+     *
+     * @param lo The lower bound
+     * @param hi The upper bound
+     * @return Number of keys in the range, 0 if hi is not higher than lo
+     */
+    public int countInRange(K lo, K hi) {
+        return Math.max(0, rank(hi) - rank(lo));
     }
 
     /**
@@ -465,19 +885,23 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
      * @return true if the key is in the tree, false otherwise.
      */
     public boolean isInTree(K nodeToFind) {
+        if (keyIndex != null) {
+            return keyIndex.containsKey(nodeToFind);
+        }
         Entry<K, V> current = root;
 
         while (!isNil(current)) {
+            int compare = compare(nodeToFind, current.key);
             // Checks if the key is greater than the current key.
-            if (nodeToFind.compareTo(current.key) > 0) {
+            if (compare > 0) {
                 current = current.rightChild;
             }
             // Checks if the key is lower than the current key.
-            else if (nodeToFind.compareTo(current.key) < 0) {
+            else if (compare < 0) {
                 current = current.leftChild;
             }
             // Checks if key is in the tree.
-            else if (nodeToFind.compareTo(current.key) == 0) {
+            else {
                 return true;
             }
         }
@@ -490,25 +914,992 @@ public class SortedTreeMap<K extends Comparable<? super K>, V> implements ISorte
      * @return entry to the key.
      */
     public Entry<K, V> findNode(K key) {
+        if (keyIndex != null) {
+            return keyIndex.get(key);
+        }
         Entry<K,V> nodeToReturn;
         Entry<K, V> current = root;
 
         while (!isNil(current)) {
+            int compare = compare(key, current.key);
             // Checks if the key is greater than the current key.
-            if (key.compareTo(current.key) > 0) {
+            if (compare > 0) {
                 current = current.rightChild;
             }
             // Checks if the key is lower than the current key.
-            else if (key.compareTo(current.key) < 0) {
+            else if (compare < 0) {
                 current = current.leftChild;
             }
             // Checks if key is in the tree.
-            else if (key.compareTo(current.key) == 0) {
+            else {
                 nodeToReturn = current;
                 return nodeToReturn;
             }
         }
         return null;
     }
-}
 
+    /**
+     * Stores a new value in a node, keeping the value index in sync.
+     */
+    private void setValue(Entry<K, V> node, V value) {
+        if (valueIndex != null) {
+            valueIndex.remove(node.key, node.value);
+            valueIndex.add(node.key, value);
+        }
+        node.value = value;
+    }
+
+    /**
+     * Searches for the key like findNode, but stops at the node the key would be
+     * linked under when it is not in the tree.
+     * @return the node with the key, the parent for a new node with the key, or nil
+     * if the tree is empty
+     */
+    private Entry<K, V> descend(K key) {
+        if (keyIndex != null) {
+            Entry<K, V> node = keyIndex.get(key);
+            if (node != null) {
+                return node;
+            }
+        }
+        Entry<K, V> parent = nil;
+        Entry<K, V> current = root;
+        while (!isNil(current)) {
+            parent = current;
+            int compare = compare(key, current.key);
+            if (compare > 0) {
+                current = current.rightChild;
+            }
+            else if (compare < 0) {
+                current = current.leftChild;
+            }
+            else {
+                return current;
+            }
+        }
+        return parent;
+    }
+
+    private Entry<K, V> findExisting(K key) throws NoSuchElementException {
+        Entry<K, V> entry = findNode(key);
+        if (entry == null) {
+            throw new NoSuchElementException("The key is not in the tree");
+        }
+        return entry;
+    }
+
+    /**
+     * Links a new red node under the parent found by descend and rebalances.
+     * @param compare the key compared with the key of the parent
+     */
+    private void link(K key, V value, Entry<K, V> parent, int compare) {
+        Entry<K, V> newEntry = new Entry<K, V>(key, value);
+        if (valueIndex != null) {
+            valueIndex.add(key, value);
+        }
+        if (keyIndex != null) {
+            keyIndex.put(key, newEntry);
+        }
+        newEntry.parent = parent;
+        if (isNil(parent)) {
+            root = newEntry;
+        }
+        else if (compare < 0) {
+            parent.leftChild = newEntry;
+        }
+        else {
+            parent.rightChild = newEntry;
+        }
+
+        newEntry.leftChild = nil;
+        newEntry.rightChild = nil;
+        newEntry.color = Entry.RED;
+        for (Entry<K, V> ancestor = parent; !isNil(ancestor); ancestor = ancestor.parent) {
+            ancestor.size++;
+        }
+        insertFixup(newEntry);
+
+        size++;
+        modCount++;
+    }
+
+    /**
+     * Stores a computed value in an existing node, or removes the node if it is null.
+     * The node is only still in the tree if the function that computed the value left
+     * the map alone.
+     * @return the value
+     */
+    private V update(Entry<K, V> node, V value, int expectedModCount) {
+        if (modCount != expectedModCount) {
+            throw new ConcurrentModificationException();
+        }
+        if (value == null) {
+            deleteEntry(node);
+        }
+        else {
+            setValue(node, value);
+        }
+        return value;
+    }
+
+    /**
+     * Links a computed value for a key that was not in the tree, unless it is null.
+     * The parent is only valid if the function that computed the value left the map
+     * alone.
+     * @return the value
+     */
+    private V insert(K key, V value, Entry<K, V> parent, int compare, int expectedModCount) {
+        if (modCount != expectedModCount) {
+            throw new ConcurrentModificationException();
+        }
+        if (value != null) {
+            link(key, value, parent, compare);
+        }
+        return value;
+    }
+
+    /**
+     * Replaces the contents of the map with a perfectly balanced tree built from
+     * entries that are already sorted by key, in linear time. Every node of the
+     * new tree is black except for the bottom level when it is not full.
+     * @param sorted entries in strictly increasing key order
+     * @param count number of entries to take from the iterator
+     */
+    private void buildFromSorted(Iterator<? extends Entry<K, V>> sorted, int count) {
+        // The new nodes are indexed as they are built.
+        if (valueIndex != null) {
+            valueIndex.clear();
+        }
+        if (keyIndex != null) {
+            keyIndex.clear();
+        }
+        int redLevel = 31 - Integer.numberOfLeadingZeros(count + 1);
+        root = buildSubtree(0, 0, count - 1, redLevel, sorted, true);
+        root.parent = nil;
+        size = count;
+        modCount++;
+    }
+
+    /**
+     * Merges the entries at positions lo to hi, exclusive, of this map with those at
+     * otherLo to otherHi of the other map, with the other map winning on equal keys.
+     * @return the number of entries written to out
+     */
+    private int mergeRange(int lo, int hi, SortedTreeMap<K, V> other, int otherLo, int otherHi,
+                           Entry<K, V>[] out) {
+        Entry<K, V> mine = lo < hi ? select(lo) : null;
+        Entry<K, V> theirs = otherLo < otherHi ? other.select(otherLo) : null;
+        int myLeft = hi - lo;
+        int theirLeft = otherHi - otherLo;
+        int count = 0;
+        while (myLeft > 0 && theirLeft > 0) {
+            int compare = compare(mine.key, theirs.key);
+            if (compare < 0) {
+                out[count++] = mine;
+                mine = successor(mine);
+                myLeft--;
+            }
+            else {
+                if (compare == 0) {
+                    mine = successor(mine);
+                    myLeft--;
+                }
+                out[count++] = theirs;
+                theirs = other.successor(theirs);
+                theirLeft--;
+            }
+        }
+        for (; myLeft > 0; myLeft--) {
+            out[count++] = mine;
+            mine = successor(mine);
+        }
+        for (; theirLeft > 0; theirLeft--) {
+            out[count++] = theirs;
+            theirs = other.successor(theirs);
+        }
+        return count;
+    }
+
+    /**
+     * Like buildFromSorted, but builds the subtrees of large ranges in parallel on the
+     * common ForkJoinPool. The indexes, if any, are filled afterwards.
+     * @param sorted entries in strictly increasing key order
+     * @param count number of entries to take from the start of sorted
+     */
+    private void buildInParallel(Entry<K, V>[] sorted, int count) {
+        int redLevel = 31 - Integer.numberOfLeadingZeros(count + 1);
+        root = ForkJoinPool.commonPool().invoke(new BuildTask(sorted, 0, 0, count - 1, redLevel));
+        root.parent = nil;
+        size = count;
+        modCount++;
+
+        if (valueIndex != null) {
+            valueIndex.clear();
+        }
+        if (keyIndex != null) {
+            keyIndex.clear();
+        }
+        if (valueIndex != null || keyIndex != null) {
+            for (Entry<K, V> entry = min(); entry != null; entry = successor(entry)) {
+                if (valueIndex != null) {
+                    valueIndex.add(entry.key, entry.value);
+                }
+                if (keyIndex != null) {
+                    keyIndex.put(entry.key, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the subtree for the entries at positions lo to hi, both inclusive, the
+     * same shape and colors as buildSubtree, forking the left subtree while the range
+     * is large.
+     */
+    private class BuildTask extends RecursiveTask<Entry<K, V>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Entry<K, V>[] sorted;
+        private final int level;
+        private final int lo;
+        private final int hi;
+        private final int redLevel;
+
+        BuildTask(Entry<K, V>[] sorted, int level, int lo, int hi, int redLevel) {
+            this.sorted = sorted;
+            this.level = level;
+            this.lo = lo;
+            this.hi = hi;
+            this.redLevel = redLevel;
+        }
+
+        protected Entry<K, V> compute() {
+            if (hi - lo < PARALLEL_THRESHOLD) {
+                // Not indexed here, since the indexes are not thread-safe.
+                return buildSubtree(level, lo, hi, redLevel, Arrays.asList(sorted).subList(lo, hi + 1).iterator(),
+                        false);
+            }
+            int mid = (lo + hi) >>> 1;
+            BuildTask leftTask = new BuildTask(sorted, level + 1, lo, mid - 1, redLevel);
+            leftTask.fork();
+            Entry<K, V> right = new BuildTask(sorted, level + 1, mid + 1, hi, redLevel).compute();
+            Entry<K, V> left = leftTask.join();
+
+            Entry<K, V> middle = new Entry<>(sorted[mid].key, sorted[mid].value);
+            middle.leftChild = left;
+            middle.rightChild = right;
+            if (!isNil(left)) {
+                left.parent = middle;
+            }
+            if (!isNil(right)) {
+                right.parent = middle;
+            }
+            if (level == redLevel) {
+                middle.color = Entry.RED;
+            }
+            middle.size = left.size + right.size + 1;
+            return middle;
+        }
+    }
+
+    /**
+     * Passes entries through while checking that their keys are strictly increasing.
+     */
+    private class CheckedIterator implements Iterator<Entry<K, V>> {
+        private final Iterator<? extends Entry<K, V>> sorted;
+        private Entry<K, V> previous;
+
+        CheckedIterator(Iterator<? extends Entry<K, V>> sorted) {
+            this.sorted = sorted;
+        }
+
+        public boolean hasNext() {
+            return sorted.hasNext();
+        }
+
+        public Entry<K, V> next() {
+            Entry<K, V> entry = sorted.next();
+            if (previous != null && compare(previous.key, entry.key) >= 0) {
+                throw new IllegalArgumentException("The keys are not in strictly increasing order");
+            }
+            previous = entry;
+            return entry;
+        }
+    }
+
+    /**
+     * Range view that steps to the next entry through the parent links instead of
+     * searching from the root for every entry.
+     */
+    private class RangeView extends SubMap<K, V> {
+        RangeView(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+            super(SortedTreeMap.this, comparator, lo, loInclusive, hi, hiInclusive);
+        }
+
+        @Override
+        protected Entry<K, V> successor(Entry<K, V> entry) {
+            return SortedTreeMap.this.successor(entry);
+        }
+
+        /**
+         * Counts the entries in the range in O(log n) from the subtree sizes.
+         */
+        @Override
+        public int size() {
+            int below = hi == null ? size : countBelow(hi, hiInclusive);
+            int above = lo == null ? 0 : countBelow(lo, !loInclusive);
+            return Math.max(0, below - above);
+        }
+
+        @Override
+        protected ISortedTreeMap<K, V> newView(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+            return new RangeView(lo, loInclusive, hi, hiInclusive);
+        }
+    }
+
+    /**
+     * Walks the entries of the map in order, skipping the doomed entries.
+     */
+    private class SurvivorIterator implements Iterator<Entry<K, V>> {
+        private final Iterator<Entry<K, V>> entries = entries().iterator();
+        private final ArrayList<Entry<K, V>> doomed;
+        private int nextDoomed;
+
+        /**
+         * @param doomed entries to skip, in the same order as they appear in the map
+         */
+        SurvivorIterator(ArrayList<Entry<K, V>> doomed) {
+            this.doomed = doomed;
+        }
+
+        public boolean hasNext() {
+            return entries.hasNext();
+        }
+
+        public Entry<K, V> next() {
+            Entry<K, V> entry = entries.next();
+            while (nextDoomed < doomed.size() && entry == doomed.get(nextDoomed)) {
+                nextDoomed++;
+                entry = entries.next();
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Builds the subtree for the entries with positions lo to hi, both inclusive.
+     * @param indexed whether to add the new nodes to the indexes as they are built
+     * @return root of the subtree, or nil if it is empty.
+     */
+    private Entry<K, V> buildSubtree(int level, int lo, int hi, int redLevel,
+                                     Iterator<? extends Entry<K, V>> sorted, boolean indexed) {
+        if (hi < lo) {
+            return nil;
+        }
+        int mid = (lo + hi) >>> 1;
+
+        Entry<K, V> left = buildSubtree(level + 1, lo, mid - 1, redLevel, sorted, indexed);
+        Entry<K, V> source = sorted.next();
+        Entry<K, V> middle = new Entry<>(source.key, source.value);
+        if (indexed && valueIndex != null) {
+            valueIndex.add(source.key, source.value);
+        }
+        if (indexed && keyIndex != null) {
+            keyIndex.put(source.key, middle);
+        }
+        middle.leftChild = left;
+        if (!isNil(left)) {
+            left.parent = middle;
+        }
+        if (level == redLevel) {
+            middle.color = Entry.RED;
+        }
+
+        Entry<K, V> right = buildSubtree(level + 1, mid + 1, hi, redLevel, sorted, indexed);
+        middle.rightChild = right;
+        if (!isNil(right)) {
+            right.parent = middle;
+        }
+        middle.size = left.size + right.size + 1;
+        return middle;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Entry<K, V>[] newEntries(int length) {
+        return (Entry<K, V>[]) new Entry<?, ?>[length];
+    }
+
+    /**
+     * Finds the entry with the next higher key than the node.
+     * @param node to start from
+     * @return the next entry in order, or null if node is the maximum.
+     */
+    private Entry<K, V> successor(Entry<K, V> node) {
+        if (!isNil(node.rightChild)) {
+            return min(node.rightChild);
+        }
+        Entry<K, V> parent = node.parent;
+        while (!isNil(parent) && node == parent.rightChild) {
+            node = parent;
+            parent = parent.parent;
+        }
+        return isNil(parent) ? null : parent;
+    }
+
+    /**
+     * In-order iterator over the entries of the map. It steps to the successor through
+     * the parent links, so it needs no stack and allocates nothing per element, and it
+     * fails fast if the map is modified other than through the iterator itself.
+     */
+    private abstract class TreeIterator<T> implements Iterator<T> {
+        private Entry<K, V> next;
+        private Entry<K, V> lastReturned;
+        private int expectedModCount;
+
+        TreeIterator() {
+            next = min();
+            expectedModCount = modCount;
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        Entry<K, V> nextEntry() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            lastReturned = next;
+            next = successor(next);
+            return lastReturned;
+        }
+
+        public void remove() {
+            if (lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            // Unlinking moves nodes instead of copying keys, so next is still valid.
+            deleteEntry(lastReturned);
+            lastReturned = null;
+            expectedModCount = modCount;
+        }
+    }
+
+    /**
+     * Spliterator over the entries at positions lo to hi, exclusive, in the sorted
+     * order. Splitting halves the range and finds no node; the first node is found
+     * with select when traversal starts, and the rest by stepping to the successor.
+     */
+    private class TreeSpliterator<T> implements Spliterator<T> {
+        private final Function<Entry<K, V>, T> element;
+        private final int characteristics;
+        private final Comparator<? super T> order;
+        private int lo;
+        private int hi;
+        private Entry<K, V> next;
+        private final int expectedModCount;
+
+        /**
+         * @param order The order of the elements if they are sorted, or null for their
+         * natural order or if they are not sorted
+         */
+        TreeSpliterator(Function<Entry<K, V>, T> element, int characteristics, Comparator<? super T> order) {
+            this(element, characteristics, order, 0, size, modCount);
+        }
+
+        private TreeSpliterator(Function<Entry<K, V>, T> element, int characteristics,
+                                Comparator<? super T> order, int lo, int hi, int expectedModCount) {
+            this.element = element;
+            this.characteristics = characteristics;
+            this.order = order;
+            this.lo = lo;
+            this.hi = hi;
+            this.expectedModCount = expectedModCount;
+        }
+
+        public Spliterator<T> trySplit() {
+            if (next != null || hi - lo < 2) {
+                return null;
+            }
+            int mid = (lo + hi) >>> 1;
+            Spliterator<T> prefix = new TreeSpliterator<>(element, characteristics, order, lo, mid,
+                    expectedModCount);
+            lo = mid;
+            return prefix;
+        }
+
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (lo >= hi) {
+                return false;
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next == null) {
+                next = select(lo);
+            }
+            Entry<K, V> current = next;
+            next = successor(next);
+            lo++;
+            action.accept(element.apply(current));
+            return true;
+        }
+
+        public void forEachRemaining(Consumer<? super T> action) {
+            while (tryAdvance(action)) {
+                // tryAdvance does the work.
+            }
+        }
+
+        public long estimateSize() {
+            return hi - lo;
+        }
+
+        public int characteristics() {
+            return characteristics;
+        }
+
+        public Comparator<? super T> getComparator() {
+            if ((characteristics & Spliterator.SORTED) == 0) {
+                throw new IllegalStateException();
+            }
+            return order;
+        }
+    }
+
+    private class KeyIterator extends TreeIterator<K> {
+        public K next() {
+            return nextEntry().key;
+        }
+    }
+
+    private class ValueIterator extends TreeIterator<V> {
+        public V next() {
+            return nextEntry().value;
+        }
+    }
+
+    private class EntryIterator extends TreeIterator<Entry<K, V>> {
+        public Entry<K, V> next() {
+            return nextEntry();
+        }
+    }
+
+    /**
+     * Counts the keys lower than the key in one descent, using the subtree sizes.
+     * @param key The key to compare with
+     * @param inclusive true if a key equal to the key is counted as well
+     * @return Number of keys below the key
+     */
+    private int countBelow(K key, boolean inclusive) {
+        Entry<K, V> current = root;
+        int count = 0;
+
+        while (!isNil(current)) {
+            int compare = compare(key, current.key);
+            if (compare > 0 || (compare == 0 && inclusive)) {
+                count += current.leftChild.size + 1;
+                if (compare == 0) {
+                    return count;
+                }
+                current = current.rightChild;
+            }
+            else if (compare < 0) {
+                current = current.leftChild;
+            }
+            else {
+                return count + current.leftChild.size;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Finds the closest entry to the key in one descent from the root.
+     * @param key The key to compare with
+     * @param higher true to look for higher keys, false to look for lower keys
+     * @param inclusive true if an entry with an equal key is accepted
+     * @return The closest entry in the given direction, or null if there is none
+     */
+    private Entry<K, V> nearest(K key, boolean higher, boolean inclusive) {
+        Entry<K, V> current = root;
+        Entry<K, V> candidate = null;
+
+        while (!isNil(current)) {
+            int compare = compare(key, current.key);
+            if (compare == 0 && inclusive) {
+                return current;
+            }
+            if (higher) {
+                // Every key in the left subtree is closer than current, if any is high enough.
+                if (compare < 0) {
+                    candidate = current;
+                    current = current.leftChild;
+                }
+                else {
+                    current = current.rightChild;
+                }
+            }
+            else {
+                if (compare > 0) {
+                    candidate = current;
+                    current = current.rightChild;
+                }
+                else {
+                    current = current.leftChild;
+                }
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * Returned by the bounded lookups when they give up.
+     */
+    final Entry<K, V> gaveUp = new Entry<>();
+
+    /**
+     * Like findNode, for lookups that may run while another thread changes the tree, as
+     * the optimistic reads of StampedSortedTreeMap do. The bounded lookups follow no
+     * more links than a valid tree of this size is deep, and never a missing one, since
+     * a tree in the middle of a rotation can show a cycle or a half-linked node. They
+     * do not use the key index, whose hash table is not safe to read during a write.
+     * What they return is only right if no write ran meanwhile.
+     * @return The entry for the key, null if there is none, or gaveUp
+     */
+    Entry<K, V> boundedFind(K key) {
+        Entry<K, V> current = root;
+        for (int steps = maxDepth(); steps > 0 && current != null; steps--) {
+            if (isNil(current)) {
+                return null;
+            }
+            int compare = compare(key, current.key);
+            if (compare == 0) {
+                return current;
+            }
+            current = compare > 0 ? current.rightChild : current.leftChild;
+        }
+        return gaveUp;
+    }
+
+    /**
+     * Like nearest, with the limits of boundedFind.
+     * @return The closest entry in the given direction, null if there is none, or gaveUp
+     */
+    Entry<K, V> boundedNearest(K key, boolean higher, boolean inclusive) {
+        Entry<K, V> current = root;
+        Entry<K, V> candidate = null;
+        for (int steps = maxDepth(); steps > 0 && current != null; steps--) {
+            if (isNil(current)) {
+                return candidate;
+            }
+            int compare = compare(key, current.key);
+            if (compare == 0 && inclusive) {
+                return current;
+            }
+            if (higher ? compare < 0 : compare > 0) {
+                candidate = current;
+                current = higher ? current.leftChild : current.rightChild;
+            }
+            else {
+                current = higher ? current.rightChild : current.leftChild;
+            }
+        }
+        return gaveUp;
+    }
+
+    /**
+     * Like min and max, with the limits of boundedFind.
+     * @return The lowest or highest entry, null if the map is empty, or gaveUp
+     */
+    Entry<K, V> boundedEnd(boolean lowest) {
+        Entry<K, V> current = root;
+        Entry<K, V> last = null;
+        for (int steps = maxDepth(); steps > 0 && current != null; steps--) {
+            if (isNil(current)) {
+                return last;
+            }
+            last = current;
+            current = lowest ? current.leftChild : current.rightChild;
+        }
+        return gaveUp;
+    }
+
+    /**
+     * One more than the most nodes on a path from the root down to nil in a red-black
+     * tree of this size, which is at most 2 log2(size + 1).
+     */
+    private int maxDepth() {
+        return 2 * (32 - Integer.numberOfLeadingZeros(size + 1)) + 2;
+    }
+
+    /**
+     * Compares two keys with the comparator of the map, or by their natural ordering
+     * if the map was created without one.
+     * @param a first key
+     * @param b second key
+     * @return negative, zero or positive as a is lower than, equal to or greater than b.
+     */
+    private int compare(K a, K b) {
+        if (comparator != null) {
+            return comparator.compare(a, b);
+        }
+        return a.compareTo(b);
+    }
+
+    /**
+     * Rotates the subtree at node to the left, so that its right child takes its place.
+     * @param node root of the subtree to rotate
+     */
+    private void leftRotate(Entry<K, V> node) {
+        Entry<K, V> child = node.rightChild;
+        node.rightChild = child.leftChild;
+        if (!isNil(child.leftChild)) {
+            child.leftChild.parent = node;
+        }
+        child.parent = node.parent;
+        if (isNil(node.parent)) {
+            root = child;
+        }
+        else if (node == node.parent.leftChild) {
+            node.parent.leftChild = child;
+        }
+        else {
+            node.parent.rightChild = child;
+        }
+        child.leftChild = node;
+        node.parent = child;
+        child.size = node.size;
+        node.size = node.leftChild.size + node.rightChild.size + 1;
+    }
+
+    /**
+     * Rotates the subtree at node to the right, so that its left child takes its place.
+     * @param node root of the subtree to rotate
+     */
+    private void rightRotate(Entry<K, V> node) {
+        Entry<K, V> child = node.leftChild;
+        node.leftChild = child.rightChild;
+        if (!isNil(child.rightChild)) {
+            child.rightChild.parent = node;
+        }
+        child.parent = node.parent;
+        if (isNil(node.parent)) {
+            root = child;
+        }
+        else if (node == node.parent.rightChild) {
+            node.parent.rightChild = child;
+        }
+        else {
+            node.parent.leftChild = child;
+        }
+        child.rightChild = node;
+        node.parent = child;
+        child.size = node.size;
+        node.size = node.leftChild.size + node.rightChild.size + 1;
+    }
+
+    /**
+     * Restores the red-black properties after a red node has been inserted.
+     * @param node the inserted node
+     */
+    private void insertFixup(Entry<K, V> node) {
+        while (node.parent.color == Entry.RED) {
+            Entry<K, V> grandParent = node.parent.parent;
+            if (node.parent == grandParent.leftChild) {
+                Entry<K, V> uncle = grandParent.rightChild;
+                if (uncle.color == Entry.RED) {
+                    node.parent.color = Entry.BLACK;
+                    uncle.color = Entry.BLACK;
+                    grandParent.color = Entry.RED;
+                    node = grandParent;
+                }
+                else {
+                    if (node == node.parent.rightChild) {
+                        node = node.parent;
+                        leftRotate(node);
+                    }
+                    node.parent.color = Entry.BLACK;
+                    node.parent.parent.color = Entry.RED;
+                    rightRotate(node.parent.parent);
+                }
+            }
+            else {
+                Entry<K, V> uncle = grandParent.leftChild;
+                if (uncle.color == Entry.RED) {
+                    node.parent.color = Entry.BLACK;
+                    uncle.color = Entry.BLACK;
+                    grandParent.color = Entry.RED;
+                    node = grandParent;
+                }
+                else {
+                    if (node == node.parent.leftChild) {
+                        node = node.parent;
+                        rightRotate(node);
+                    }
+                    node.parent.color = Entry.BLACK;
+                    node.parent.parent.color = Entry.RED;
+                    leftRotate(node.parent.parent);
+                }
+            }
+        }
+        root.color = Entry.BLACK;
+    }
+
+    /**
+     * Replaces the subtree at oldNode with the subtree at newNode.
+     * @param oldNode subtree to replace
+     * @param newNode subtree to put in its place, may be nil
+     */
+    private void transplant(Entry<K, V> oldNode, Entry<K, V> newNode) {
+        if (isNil(oldNode.parent)) {
+            root = newNode;
+        }
+        else if (oldNode == oldNode.parent.leftChild) {
+            oldNode.parent.leftChild = newNode;
+        }
+        else {
+            oldNode.parent.rightChild = newNode;
+        }
+        newNode.parent = oldNode.parent;
+    }
+
+    /**
+     * Unlinks the node from the tree and rebalances it. The node is moved rather than
+     * copied, so every other entry keeps its identity.
+     * @param node the node to unlink
+     */
+    private void deleteEntry(Entry<K, V> node) {
+        if (valueIndex != null) {
+            valueIndex.remove(node.key, node.value);
+        }
+        // Deleting moves nodes instead of copying keys, so the other indexed nodes stay valid.
+        if (keyIndex != null) {
+            keyIndex.remove(node.key);
+        }
+        Entry<K, V> moved = node;
+        boolean movedColor = moved.color;
+        Entry<K, V> replacement;
+
+        if (isNil(node.leftChild)) {
+            shrinkPath(node.parent);
+            replacement = node.rightChild;
+            transplant(node, node.rightChild);
+        }
+        else if (isNil(node.rightChild)) {
+            shrinkPath(node.parent);
+            replacement = node.leftChild;
+            transplant(node, node.leftChild);
+        }
+        else {
+            moved = min(node.rightChild);
+            // The successor leaves its place, and every node above that place, node included, loses one.
+            shrinkPath(moved.parent);
+            movedColor = moved.color;
+            replacement = moved.rightChild;
+            if (moved.parent == node) {
+                replacement.parent = moved;
+            }
+            else {
+                transplant(moved, moved.rightChild);
+                moved.rightChild = node.rightChild;
+                moved.rightChild.parent = moved;
+            }
+            transplant(node, moved);
+            moved.leftChild = node.leftChild;
+            moved.leftChild.parent = moved;
+            moved.color = node.color;
+            moved.size = node.size;
+        }
+
+        if (movedColor == Entry.BLACK) {
+            deleteFixup(replacement);
+        }
+
+        node.leftChild = null;
+        node.rightChild = null;
+        node.parent = null;
+        nil.parent = nil;
+        size--;
+        modCount++;
+    }
+
+    /**
+     * Decrements the subtree size of the node and all its ancestors.
+     * @param node the lowest node that loses a descendant
+     */
+    private void shrinkPath(Entry<K, V> node) {
+        for (; !isNil(node); node = node.parent) {
+            node.size--;
+        }
+    }
+
+    /**
+     * Restores the red-black properties after a black node has been unlinked.
+     * @param node the node that took the place of the unlinked node
+     */
+    private void deleteFixup(Entry<K, V> node) {
+        while (node != root && node.color == Entry.BLACK) {
+            if (node == node.parent.leftChild) {
+                Entry<K, V> sibling = node.parent.rightChild;
+                if (sibling.color == Entry.RED) {
+                    sibling.color = Entry.BLACK;
+                    node.parent.color = Entry.RED;
+                    leftRotate(node.parent);
+                    sibling = node.parent.rightChild;
+                }
+                if (sibling.leftChild.color == Entry.BLACK && sibling.rightChild.color == Entry.BLACK) {
+                    sibling.color = Entry.RED;
+                    node = node.parent;
+                }
+                else {
+                    if (sibling.rightChild.color == Entry.BLACK) {
+                        sibling.leftChild.color = Entry.BLACK;
+                        sibling.color = Entry.RED;
+                        rightRotate(sibling);
+                        sibling = node.parent.rightChild;
+                    }
+                    sibling.color = node.parent.color;
+                    node.parent.color = Entry.BLACK;
+                    sibling.rightChild.color = Entry.BLACK;
+                    leftRotate(node.parent);
+                    node = root;
+                }
+            }
+            else {
+                Entry<K, V> sibling = node.parent.leftChild;
+                if (sibling.color == Entry.RED) {
+                    sibling.color = Entry.BLACK;
+                    node.parent.color = Entry.RED;
+                    rightRotate(node.parent);
+                    sibling = node.parent.leftChild;
+                }
+                if (sibling.rightChild.color == Entry.BLACK && sibling.leftChild.color == Entry.BLACK) {
+                    sibling.color = Entry.RED;
+                    node = node.parent;
+                }
+                else {
+                    if (sibling.leftChild.color == Entry.BLACK) {
+                        sibling.rightChild.color = Entry.BLACK;
+                        sibling.color = Entry.RED;
+                        leftRotate(sibling);
+                        sibling = node.parent.leftChild;
+                    }
+                    sibling.color = node.parent.color;
+                    node.parent.color = Entry.BLACK;
+                    sibling.leftChild.color = Entry.BLACK;
+                    rightRotate(node.parent);
+                    node = root;
+                }
+            }
+        }
+        node.color = Entry.BLACK;
+    }
+}
@@ -7,7 +7,23 @@ import fj.test.Property;
 import fj.test.runner.PropertyTestRunner;
 import org.junit.runner.RunWith;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static fj.Equal.*;
 import static fj.Ord.*;
@@ -505,6 +521,61 @@ public class SortedTreeMapTest {
         });
     }
 
+    /**
+     * Check that an iterator fails fast when the map is changed behind its back,
+     * but not when entries are removed through the iterator itself.
+     */
+    public Property iterator_fails_fast() {
+        return property(nonEmptyKVList, arbInteger, (kvs, key) -> {
+            SortedTreeMap<Integer, String> tm = new SortedTreeMap<>(intOrd.toComparator());
+            kvs.foreachDoEffect(kv -> tm.add(kv._1(), kv._2()));
+
+            Iterator<Integer> keys = tm.keys().iterator();
+            while (keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+            boolean emptied = tm.isEmpty();
+
+            kvs.foreachDoEffect(kv -> tm.add(kv._1(), kv._2()));
+            Iterator<String> values = tm.values().iterator();
+            values.next();
+            tm.clear();
+            try {
+                values.next();
+            } catch (ConcurrentModificationException e) {
+                return prop(emptied);
+            } catch (NoSuchElementException e) {
+                return prop(emptied && kvs.length() == 1);
+            }
+            return prop(false);
+        });
+    }
+
+    /**
+     * Check that a map built from sorted entries holds the same entries as one built
+     * with add, and that unsorted input is rejected.
+     */
+    public Property build_from_sorted() {
+        return property(isKVList, kvs -> {
+            List<Entry<Integer, String>> sorted = kvs.sort(p2Ord1(intOrd)).map(kv -> new Entry<>(kv._1(), kv._2()));
+            SortedTreeMap<Integer, String> tm = new SortedTreeMap<>(sorted, sorted.length(), intOrd.toComparator());
+
+            List<Integer> keys = fromIterator(tm.keys().iterator());
+            boolean same = intListEqual.eq(keys, kvs.map(P2::_1).sort(intOrd))
+                    && tm.size() == kvs.length()
+                    && kvs.forall(kv -> tm.getValue(kv._1()).equals(kv._2()));
+
+            boolean rejected = kvs.length() <= 1;
+            try {
+                new SortedTreeMap<>(sorted.reverse(), sorted.length(), intOrd.toComparator());
+            } catch (IllegalArgumentException e) {
+                rejected = true;
+            }
+            return prop(same && rejected);
+        });
+    }
+
     /**
      * Check that the tree is empty after clearing it.
      */
@@ -588,6 +659,133 @@ public class SortedTreeMapTest {
         });
     }
 
+    /**
+     * Check that the merged map holds exactly the union of the keys, in order, and
+     * is still balanced.
+     */
+    public Property merge_is_sorted_union() {
+        return property(arbKVList, arbKVList, (kvs1, kvs2) -> {
+            SortedTreeMap<Integer, String> tm1 = new SortedTreeMap<>(intOrd.toComparator());
+            SortedTreeMap<Integer, String> tm2 = new SortedTreeMap<>(intOrd.toComparator());
+
+            kvs1.foreachDoEffect(kv -> tm1.add(kv._1(), kv._2()));
+            kvs2.foreachDoEffect(kv -> tm2.add(kv._1(), kv._2()));
+
+            tm1.merge(tm2);
+
+            List<Integer> keys = fromIterator(tm1.keys().iterator());
+            List<Integer> union = Set.iterableSet(intOrd, kvs1.append(kvs2).map(P2::_1)).toList();
+
+            return prop(intListEqual.eq(keys, union)
+                    && tm1.size() == union.length()
+                    && height(tm1, tm1.getRoot()) <= 2 * (Math.log(tm1.size() + 1) / Math.log(2)));
+        });
+    }
+
+    /**
+     * Check that the parallel merge and build give the same map as merging and adding
+     * one by one, for maps large enough to be split, and that the result is balanced
+     * and stays correct under later removes.
+     */
+    public Property parallel_merge_and_build() {
+        return property(arbLong, seed -> {
+            java.util.Random random = new java.util.Random(seed);
+            int bound = SortedTreeMap.PARALLEL_THRESHOLD * 4;
+            SortedTreeMap<Integer, Integer> tm1 = new SortedTreeMap<>();
+            SortedTreeMap<Integer, Integer> tm2 = new SortedTreeMap<>();
+            TreeMap<Integer, Integer> expected = new TreeMap<>();
+            TreeMap<Integer, Integer> expectedBuilt = new TreeMap<>();
+            java.util.List<Entry<Integer, Integer>> unsorted = new ArrayList<>();
+            for (int i = random.nextInt(bound); i > 0; i--) {
+                int key = random.nextInt(bound);
+                tm1.add(key, i);
+                expected.put(key, i);
+            }
+            for (int i = random.nextInt(bound); i > 0; i--) {
+                int key = random.nextInt(bound);
+                tm2.add(key, -i);
+                expected.put(key, -i);
+                expectedBuilt.put(key, -i);
+                unsorted.add(new Entry<>(key, -i));
+            }
+            tm1.enableValueIndex();
+            tm1.parallelMerge(tm2);
+            SortedTreeMap<Integer, Integer> built = SortedTreeMap.parallelBuild(unsorted, null);
+
+            boolean merged = sameEntries(tm1, expected)
+                    && height(tm1, tm1.getRoot()) <= 2 * (Math.log(tm1.size() + 1) / Math.log(2))
+                    && expected.values().stream().allMatch(tm1::containsValue);
+            boolean buildMatches = sameEntries(built, expectedBuilt);
+
+            expected.keySet().removeIf(key -> key % 3 == 0);
+            tm1.removeIf((key, value) -> key % 3 == 0);
+            for (int key = 0; key < bound; key += 7) {
+                if (expected.remove(key) != null) {
+                    tm1.remove(key);
+                }
+            }
+            return prop(merged && buildMatches && sameEntries(tm1, expected)
+                    && height(tm1, tm1.getRoot()) <= 2 * (Math.log(tm1.size() + 1) / Math.log(2)));
+        });
+    }
+
+    /**
+     * Check that a saved map loads back with the same entries, also with a comparator,
+     * and that files that are not whole snapshots are refused.
+     */
+    public Property save_and_load() {
+        return property(arbKVList, kvs -> {
+            SortedTreeMap<Integer, String> tm = new SortedTreeMap<>(intOrd.toComparator());
+            kvs.foreachDoEffect(kv -> tm.add(kv._1(), kv._2()));
+            try {
+                Path file = Files.createTempFile("snapshot", ".bin");
+                try {
+                    tm.save(file, Codec.INT, Codec.STRING);
+                    SortedTreeMap<Integer, String> loaded =
+                            SortedTreeMap.load(file, Codec.INT, Codec.STRING, intOrd.toComparator());
+                    boolean same = fromIterator(loaded.entries().iterator())
+                            .equals(fromIterator(tm.entries().iterator()))
+                            && height(loaded, loaded.getRoot()) <= 2 * (Math.log(loaded.size() + 1) / Math.log(2));
+
+                    byte[] bytes = Files.readAllBytes(file);
+                    Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+                    boolean truncated = refused(file);
+                    bytes[0] = 0;
+                    Files.write(file, bytes);
+                    boolean garbage = refused(file);
+                    return prop(same && truncated && garbage);
+                } finally {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static boolean refused(Path file) {
+        try {
+            SortedTreeMap.load(file, Codec.INT, Codec.STRING, null);
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static boolean sameEntries(SortedTreeMap<Integer, Integer> tm, TreeMap<Integer, Integer> expected) {
+        if (tm.size() != expected.size()) {
+            return false;
+        }
+        Iterator<Entry<Integer, Integer>> entries = tm.entries().iterator();
+        for (java.util.Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            Entry<Integer, Integer> actual = entries.next();
+            if (!actual.key.equals(entry.getKey()) || !actual.value.equals(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Check that we can find the entry that is equal or has a higher key than
      * the one we are looking for.
@@ -630,4 +828,390 @@ public class SortedTreeMapTest {
                     && tm.containsKey(next._1()));
         });
     }
+
+    /**
+     * Check that we can find the entry that has a strictly higher key than the one
+     * we are looking for.
+     */
+    public Property higher_entry() {
+        return property(isKVList, arbInteger, (kvs, key) -> {
+            SortedTreeMap<Integer, String> tm = new SortedTreeMap<>(intOrd.toComparator());
+            kvs.foreachDoEffect(kv -> tm.add(kv._1(), kv._2()));
+
+            P2<Integer, String> next = kvs.sort(p2Ord1(intOrd)).dropWhile(k -> k._1() <= key).headOption().toNull();
+            Entry<Integer, String> entry = tm.higherEntry(key);
+
+            if (next == null || entry == null) {
+                return prop(entry == null && next == null);
+            }
+
+            return prop(next._1().equals(entry.key) && next._2().equals(entry.value));
+        });
+    }
+
+    /**
+     * Check that we can find the entry that has a strictly lower key than the one
+     * we are looking for, also when the keys are Strings.
+     */
+    public Property lower_entry() {
+        return property(listOf(arbString), arbString, (strings, key) -> {
+            SortedTreeMap<String, String> tm = new SortedTreeMap<>(stringOrd.toComparator());
+            strings.foreachDoEffect(s -> tm.add(s, s));
+
+            String next = strings.sort(stringOrd.reverse()).dropWhile(s -> s.compareTo(key) >= 0).headOption().toNull();
+            Entry<String, String> entry = tm.lowerEntry(key);
+
+            if (next == null || entry == null) {
+                return prop(entry == null && next == null);
+            }
+
+            return prop(next.equals(entry.key));
+        });
+    }
+
+    /**
+     * Check that a sub map only sees the keys in its range, and that removeIf on the
+     * view leaves the entries outside the range alone.
+     */
+    public Property sub_map_range() {
+        return property(isKVList, arbInteger, arbInteger, (kvs, a, b) -> {
+            int lo = Math.min(a, b);
+            int hi = Math.max(a, b);
+            SortedTreeMap<Integer, String> tm = new SortedTreeMap<>(intOrd.toComparator());
+            kvs.foreachDoEffect(kv -> tm.add(kv._1(), kv._2()));
+
+            ISortedTreeMap<Integer, String> view = tm.subMap(lo, true, hi, false);
+            List<Integer> inside = kvs.map(P2::_1).filter(key -> key >= lo && key < hi).sort(intOrd);
+            List<Integer> keys = fromIterator(view.keys().iterator());
+
+            boolean seen = intListEqual.eq(keys, inside)
+                    && view.size() == inside.length()
+                    && kvs.forall(kv -> view.containsKey(kv._1()) == (kv._1() >= lo && kv._1() < hi));
+
+            view.removeIf((key, value) -> true);
+            List<Integer> left = fromIterator(tm.keys().iterator());
+            List<Integer> outside = kvs.map(P2::_1).filter(key -> key < lo || key >= hi).sort(intOrd);
+
+            return prop(seen && view.isEmpty() && intListEqual.eq(left, outside));
+        });
+    }
+
+    /**
+     * Check that select finds the i-th lowest key, that rank is its inverse, and that
+     * countInRange agrees with counting the keys.
+     */
+    public Property rank_select_count() {
+        return property(isKVList, arbInteger, arbInteger, (kvs, lo, hi) -> {
+            SortedTreeMap<Integer, String> tm = new SortedTreeMap<>(intOrd.toComparator());
+            kvs.foreachDoEffect(kv -> tm.add(kv._1(), kv._2()));
+
+            List<Integer> sorted = kvs.map(P2::_1).sort(intOrd);
+            boolean selected = true;
+            for (int i = 0; i < sorted.length(); i++) {
+                Entry<Integer, String> entry = tm.select(i);
+                selected &= entry.key.equals(sorted.index(i)) && tm.rank(entry.key) == i;
+            }
+            int count = sorted.filter(key -> key >= lo && key < hi).length();
+
+            return prop(selected && tm.countInRange(lo, hi) == count);
+        });
+    }
+
+    /**
+     * Check that sequential and parallel streams see every entry in key order, and that
+     * the spliterator reports its characteristics and exact sizes when split.
+     */
+    public Property streams_in_order() {
+        return property(arbList(arbInteger), keys -> {
+            SortedTreeMap<Integer, Integer> tm = new SortedTreeMap<>();
+            keys.foreachDoEffect(key -> tm.add(key, key));
+            List<Integer> sorted = Set.iterableSet(intOrd, keys).toList();
+
+            java.util.List<Integer> parallelKeys = tm.keyStream().parallel().collect(Collectors.toList());
+            java.util.List<Integer> entryKeys = tm.parallelStream().map(e -> e.key).collect(Collectors.toList());
+            long sum = tm.valueStream().parallel().mapToLong(Integer::longValue).sum();
+
+            Spliterator<Integer> spliterator = tm.keyStream().spliterator();
+            Spliterator<Integer> prefix = spliterator.trySplit();
+            boolean sized = prefix == null
+                    ? tm.size() < 2
+                    : prefix.estimateSize() + spliterator.estimateSize() == tm.size();
+            boolean characteristics = spliterator.hasCharacteristics(Spliterator.ORDERED | Spliterator.SORTED
+                    | Spliterator.SIZED | Spliterator.DISTINCT) && spliterator.getComparator() == null;
+
+            return prop(parallelKeys.equals(new ArrayList<>(sorted.toCollection()))
+                    && entryKeys.equals(parallelKeys)
+                    && tm.stream().count() == tm.size()
+                    && sum == sorted.foldLeft((total, key) -> total + key, 0L)
+                    && sized && characteristics);
+        });
+    }
+
+    /**
+     * Check that compute refuses to link a new key after its function changed the map,
+     * since the place found for the key may no longer be in the tree.
+     */
+    public Property compute_fails_fast() {
+        return property(arbList(arbInteger), arbInteger, (keys, key) -> {
+            SortedTreeMap<Integer, Integer> tm = new SortedTreeMap<>();
+            keys.foreachDoEffect(k -> tm.add(k, k));
+            boolean present = tm.containsKey(key);
+            try {
+                tm.computeIfAbsent(key, k -> {
+                    tm.clear();
+                    return k;
+                });
+                return prop(present);
+            } catch (ConcurrentModificationException e) {
+                return prop(!present && tm.isEmpty());
+            }
+        });
+    }
+
+    /**
+     * Check the map with its value index enabled against java.util.TreeMap.
+     */
+    public Property behaves_like_tree_map_with_value_index() {
+        return behavesLikeTreeMap(() -> {
+            SortedTreeMap<Integer, String> tm = new SortedTreeMap<>();
+            tm.enableValueIndex();
+            return tm;
+        });
+    }
+
+    /**
+     * Check the map with its key index enabled against java.util.TreeMap, alone and
+     * together with the value index.
+     */
+    public Property behaves_like_tree_map_with_key_index() {
+        Property keyIndex = behavesLikeTreeMap(() -> {
+            SortedTreeMap<Integer, String> tm = new SortedTreeMap<>();
+            tm.enableKeyIndex();
+            return tm;
+        });
+        Property bothIndexes = behavesLikeTreeMap(() -> {
+            SortedTreeMap<Integer, String> tm = new SortedTreeMap<>();
+            tm.enableKeyIndex();
+            tm.enableValueIndex();
+            return tm;
+        });
+        return keyIndex.and(bothIndexes);
+    }
+
+    /**
+     * Check that keysForValue finds the same keys with and without the value index,
+     * when the index is enabled part way through and values are shared between keys.
+     */
+    public Property keys_for_value() {
+        return property(arbList(arbP2(choose(0, 30), choose(0, 5))), pairs -> {
+            SortedTreeMap<Integer, Integer> indexed = new SortedTreeMap<>();
+            SortedTreeMap<Integer, Integer> plain = new SortedTreeMap<>();
+            int half = pairs.length() / 2;
+            int i = 0;
+            for (P2<Integer, Integer> pair : pairs) {
+                if (i++ == half) {
+                    indexed.enableValueIndex();
+                }
+                // Odd values remove the key instead, if it is there.
+                if (pair._2() % 2 == 1 && plain.containsKey(pair._1())) {
+                    indexed.remove(pair._1());
+                    plain.remove(pair._1());
+                }
+                else {
+                    indexed.add(pair._1(), pair._2());
+                    plain.add(pair._1(), pair._2());
+                }
+            }
+            indexed.enableValueIndex();
+            indexed.removeIf((key, value) -> key % 4 == 0);
+            plain.removeIf((key, value) -> key % 4 == 0);
+
+            boolean same = true;
+            for (int value = 0; value <= 5; value++) {
+                same &= indexed.keysForValue(value).equals(plain.keysForValue(value))
+                        && indexed.containsValue(value) == plain.containsValue(value);
+            }
+            return prop(same);
+        });
+    }
+
+    /**
+     * Generator for a list of operations on keys in a small range, so that keys repeat.
+     * Each operation is a code for what to do, a key and a value.
+     */
+    private static final Gen<List<P3<Integer, Integer, String>>> operations =
+            listOf(arbP3(choose(0, 12), choose(-50, 50), arbString));
+
+    /**
+     * Runs random operations on a map and on a java.util.TreeMap, and checks that the map
+     * ends up with the same entries and answers every lookup the same way. The test
+     * classes of the other ISortedTreeMap implementations use this as well.
+     * @param newMap Creates an empty map with the natural ordering of Integers
+     */
+    public static Property behavesLikeTreeMap(Supplier<ISortedTreeMap<Integer, String>> newMap) {
+        return property(operations, ops -> {
+            ISortedTreeMap<Integer, String> tm = newMap.get();
+            TreeMap<Integer, String> model = new TreeMap<>();
+            HashSet<String> seen = new HashSet<>();
+            boolean same = true;
+
+            for (P3<Integer, Integer, String> op : ops) {
+                Integer key = op._2();
+                String value = op._3();
+                seen.add(value);
+                boolean present = model.containsKey(key);
+                try {
+                    switch (op._1()) {
+                        case 0:
+                            same &= equal(tm.add(key, value), model.put(key, value));
+                            break;
+                        case 1:
+                            same &= tm.remove(key).equals(model.remove(key));
+                            break;
+                        case 2:
+                            tm.replace(key, value);
+                            model.put(key, value);
+                            break;
+                        case 3:
+                            tm.replace(key, (k, v) -> v + k);
+                            model.put(key, model.get(key) + key);
+                            break;
+                        case 4:
+                            same &= tm.getValue(key).equals(model.get(key));
+                            break;
+                        case 5:
+                            int divisor = Math.abs(key) % 7 + 2;
+                            tm.removeIf((k, v) -> k % divisor == 0);
+                            model.keySet().removeIf(k -> k % divisor == 0);
+                            break;
+                        case 6:
+                            same &= tm.add(new Entry<>(key, value)) == null ? !present : present;
+                            model.put(key, value);
+                            break;
+                        case 7:
+                            BiFunction<Integer, String, String> remap =
+                                    (k, v) -> v == null ? value : v.length() > 6 ? null : v + k;
+                            same &= equal(tm.compute(key, remap), model.compute(key, remap));
+                            break;
+                        case 8:
+                            Function<Integer, String> absent = k -> value.isEmpty() ? null : value;
+                            same &= equal(tm.computeIfAbsent(key, absent), model.computeIfAbsent(key, absent));
+                            break;
+                        case 9:
+                            BiFunction<Integer, String, String> ifPresent = (k, v) -> v.length() > 6 ? null : v + value;
+                            same &= equal(tm.computeIfPresent(key, ifPresent), model.computeIfPresent(key, ifPresent));
+                            break;
+                        case 10:
+                            same &= equal(tm.putIfAbsent(key, value), model.putIfAbsent(key, value));
+                            break;
+                        case 11:
+                            BiFunction<String, String, String> combine = (a, b) -> a.length() > 6 ? null : a + b;
+                            same &= equal(tm.merge(key, value, combine), model.merge(key, value, combine));
+                            break;
+                        default:
+                            ISortedTreeMap<Integer, String> other = newMap.get();
+                            for (int k = key; k < key + 5; k += 2) {
+                                other.add(k, value);
+                                model.put(k, value);
+                            }
+                            tm.merge(other);
+                            close(other);
+                    }
+                    // Only remove, replace and getValue must throw for missing keys.
+                    same &= present || op._1() == 0 || op._1() >= 5;
+                } catch (NoSuchElementException e) {
+                    same &= !present;
+                }
+            }
+
+            List<Entry<Integer, String>> entries = fromIterator(tm.entries().iterator());
+            List<Integer> keys = fromIterator(tm.keys().iterator());
+            List<String> values = fromIterator(tm.values().iterator());
+            same &= listEqual(intEqual).eq(keys, List.iterableList(model.keySet()))
+                    && listEqual(stringEqual).eq(values, List.iterableList(model.values()))
+                    && entries.map(e -> e.key).equals(keys)
+                    && tm.size() == model.size()
+                    && tm.isEmpty() == model.isEmpty();
+
+            for (int key = -51; key <= 51; key++) {
+                same &= tm.containsKey(key) == model.containsKey(key)
+                        && sameKey(tm.higherOrEqualEntry(key), model.ceilingKey(key))
+                        && sameKey(tm.lowerOrEqualEntry(key), model.floorKey(key))
+                        && sameKey(tm.higherEntry(key), model.higherKey(key))
+                        && sameKey(tm.lowerEntry(key), model.lowerKey(key));
+            }
+            for (String value : seen) {
+                same &= tm.containsValue(value) == model.containsValue(value);
+            }
+            same &= sameKey(tm.min(), model.isEmpty() ? null : model.firstKey())
+                    && sameKey(tm.max(), model.isEmpty() ? null : model.lastKey());
+
+            tm.clear();
+            same &= tm.isEmpty() && !tm.keys().iterator().hasNext();
+            close(tm);
+            return prop(same);
+        });
+    }
+
+    /**
+     * Closes maps that hold files, so that many trials do not run out of them.
+     */
+    private static void close(ISortedTreeMap<Integer, String> map) {
+        if (map instanceof Closeable) {
+            try {
+                ((Closeable) map).close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static boolean sameKey(Entry<Integer, String> entry, Integer key) {
+        return entry == null ? key == null : entry.key.equals(key);
+    }
+
+    /**
+     * Check SortedTreeMap against java.util.TreeMap on random operations.
+     */
+    public Property behaves_like_tree_map() {
+        return behavesLikeTreeMap(SortedTreeMap::new);
+    }
+
+    /**
+     * Finds the height of the subtree from a node, the nil-node has height 0.
+     */
+    private static <K extends Comparable<? super K>, V> int height(SortedTreeMap<K, V> tm, Entry<K, V> node) {
+        if (tm.isNil(node)) {
+            return 0;
+        }
+        return 1 + Math.max(height(tm, node.leftChild), height(tm, node.rightChild));
+    }
+
+    /**
+     * Check that the height of the tree stays within the red-black bound 2*log2(n+1),
+     * both for random input and for keys added in ascending order, and after removes.
+     */
+    public Property tree_stays_balanced() {
+        return property(isKVList, choose(0, 2000), (kvs, n) -> {
+            SortedTreeMap<Integer, String> tm = new SortedTreeMap<>(intOrd.toComparator());
+            kvs.foreachDoEffect(kv -> tm.add(kv._1(), kv._2()));
+            boolean random = height(tm, tm.getRoot()) <= 2 * (Math.log(tm.size() + 1) / Math.log(2));
+
+            SortedTreeMap<Integer, String> ascending = new SortedTreeMap<>(intOrd.toComparator());
+            for (int i = 0; i < n; i++) {
+                ascending.add(i, "");
+            }
+            for (int i = 0; i < n; i += 3) {
+                ascending.remove(i);
+            }
+            boolean sorted = height(ascending, ascending.getRoot())
+                    <= 2 * (Math.log(ascending.size() + 1) / Math.log(2));
+
+            return prop(random && sorted);
+        });
+    }
 }
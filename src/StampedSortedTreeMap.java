@@ -0,0 +1,356 @@
+/**
+ * Thread-safe decorator for read-mostly use of any ISortedTreeMap.
+ */
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Makes any ISortedTreeMap safe to share between threads, tuned for maps that are read
+ * far more often than they are written. Point reads (getValue, containsKey, min, max,
+ * size and the floor and ceiling lookups) first run without taking a lock, under an
+ * optimistic StampedLock stamp. If no writer got the lock meanwhile the result is
+ * returned as is. Otherwise, or if the read gave up on a half-written map, it runs again
+ * under the read lock. Readers therefore never write to shared memory unless a writer
+ * got in their way.
+ *
+ * A walk over a map that a writer is rebalancing can see a cycle and never finish, so
+ * the lookups only run optimistically on a wrapped SortedTreeMap, through its bounded
+ * lookups, which give up after as many steps as the tree can be deep. Around any other
+ * map they take the read lock.
+ *
+ * Every write, including compute and the other read-modify-writes, merge, removeIf
+ * and clear, holds the write lock for its whole
+ * duration, so other threads see it all or not at all. Several writes can share one
+ * lock acquisition through writeBatch.
+ *
+ * keys(), values() and entries() copy the map under the read lock, so iterating is
+ * safe but costs O(n) up front. Entries returned by this map are copies of the key and
+ * value. Setting the value of a returned entry does not change the map.
+ *
+ * The wrapped map must not be used directly while it is wrapped.
+ */
+public class StampedSortedTreeMap<K extends Comparable<? super K>, V> implements ISortedTreeMap<K, V> {
+    private final ISortedTreeMap<K, V> map;
+    // The same map if it is a SortedTreeMap, for optimistic lookups, or null.
+    private final SortedTreeMap<K, V> tree;
+    private final Comparator<K> comparator;
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * @param map The map to make thread-safe
+     * @param kComparator The ordering of the map, or null for natural ordering
+     */
+    public StampedSortedTreeMap(ISortedTreeMap<K, V> map, Comparator<K> kComparator) {
+        this.map = map;
+        this.tree = map instanceof SortedTreeMap ? (SortedTreeMap<K, V>) map : null;
+        this.comparator = kComparator;
+    }
+
+    /**
+     * @param map The map to make thread-safe, ordered by the natural ordering of the keys
+     */
+    public StampedSortedTreeMap(ISortedTreeMap<K, V> map) {
+        this(map, null);
+    }
+
+    public StampedSortedTreeMap() {
+        this(new SortedTreeMap<>());
+    }
+
+    /**
+     * Runs several writes under a single acquisition of the write lock. Other threads
+     * see either none or all of the writes.
+     * @param writes Writes to the map, which must not escape the call
+     */
+    public void writeBatch(Consumer<ISortedTreeMap<K, V>> writes) {
+        long stamp = lock.writeLock();
+        try {
+            writes.accept(map);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public Entry<K, V> min() {
+        return lookup(t -> t.boundedEnd(true), map::min);
+    }
+
+    public Entry<K, V> max() {
+        return lookup(t -> t.boundedEnd(false), map::max);
+    }
+
+    public V add(K key, V value) {
+        return write(() -> map.add(key, value));
+    }
+
+    public V add(Entry<K, V> entry) {
+        return add(entry.key, entry.value);
+    }
+
+    public void replace(K key, V value) throws NoSuchElementException {
+        write(() -> {
+            map.replace(key, value);
+            return null;
+        });
+    }
+
+    /**
+     * Applies a function to the value at key and replaces that value, holding the
+     * write lock so that no other write comes in between.
+     * @param key The key for which we are replacing the value.
+     * @param f The function to apply to the value.
+     * @throws NoSuchElementException When key is not in map
+     */
+    public void replace(K key, BiFunction<K, V, V> f) throws NoSuchElementException {
+        write(() -> {
+            map.replace(key, f);
+            return null;
+        });
+    }
+
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        return write(() -> map.compute(key, f));
+    }
+
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> f) {
+        return write(() -> map.computeIfAbsent(key, f));
+    }
+
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        return write(() -> map.computeIfPresent(key, f));
+    }
+
+    public V putIfAbsent(K key, V value) {
+        return write(() -> map.putIfAbsent(key, value));
+    }
+
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> f) {
+        return write(() -> map.merge(key, value, f));
+    }
+
+    public V remove(Object key) throws NoSuchElementException {
+        return write(() -> map.remove(key));
+    }
+
+    public V getValue(Object key) throws NoSuchElementException {
+        if (tree != null) {
+            Entry<K, V> found = optimistic(t -> t.boundedFind((K) key));
+            if (found != tree.gaveUp) {
+                if (found == null) {
+                    throw new NoSuchElementException("The key is not in the tree");
+                }
+                return found.value;
+            }
+        }
+        return readLocked(() -> map.getValue(key));
+    }
+
+    public boolean containsKey(K key) {
+        if (tree != null) {
+            Entry<K, V> found = optimistic(t -> t.boundedFind(key));
+            if (found != tree.gaveUp) {
+                return found != null;
+            }
+        }
+        return readLocked(() -> map.containsKey(key));
+    }
+
+    public boolean containsValue(V value) {
+        return readLocked(() -> map.containsValue(value));
+    }
+
+    public Iterable<K> keys() {
+        return snapshot(map::keys);
+    }
+
+    public Iterable<V> values() {
+        return snapshot(map::values);
+    }
+
+    public Iterable<Entry<K, V>> entries() {
+        long stamp = lock.readLock();
+        try {
+            ArrayList<Entry<K, V>> copy = new ArrayList<>(map.size());
+            for (Entry<K, V> entry : map.entries()) {
+                copy.add(copy(entry));
+            }
+            return copy;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public Entry<K, V> higherOrEqualEntry(K key) {
+        return lookup(t -> t.boundedNearest(key, true, true), () -> map.higherOrEqualEntry(key));
+    }
+
+    public Entry<K, V> lowerOrEqualEntry(K key) {
+        return lookup(t -> t.boundedNearest(key, false, true), () -> map.lowerOrEqualEntry(key));
+    }
+
+    public Entry<K, V> higherEntry(K key) {
+        return lookup(t -> t.boundedNearest(key, true, false), () -> map.higherEntry(key));
+    }
+
+    public Entry<K, V> lowerEntry(K key) {
+        return lookup(t -> t.boundedNearest(key, false, false), () -> map.lowerEntry(key));
+    }
+
+    public ISortedTreeMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return new SubMap<>(this, comparator, fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    public ISortedTreeMap<K, V> headMap(K toKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, null, false, toKey, inclusive);
+    }
+
+    public ISortedTreeMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return new SubMap<>(this, comparator, fromKey, inclusive, null, false);
+    }
+
+    public void merge(ISortedTreeMap<K, V> other) {
+        if (other == this) {
+            return;
+        }
+        ISortedTreeMap<K, V> source = other;
+        if (other instanceof StampedSortedTreeMap) {
+            // Copy it first, so that two threads merging two maps into each other
+            // never wait for each other's lock.
+            SortedTreeMap<K, V> copy = new SortedTreeMap<>(comparator);
+            for (Entry<K, V> entry : other.entries()) {
+                copy.add(entry);
+            }
+            source = copy;
+        }
+        ISortedTreeMap<K, V> entries = source;
+        writeBatch(m -> m.merge(entries));
+    }
+
+    public void removeIf(BiPredicate<K, V> p) {
+        writeBatch(m -> m.removeIf(p));
+    }
+
+    public boolean isEmpty() {
+        return read(map::isEmpty);
+    }
+
+    public int size() {
+        return read(map::size);
+    }
+
+    public void clear() {
+        writeBatch(ISortedTreeMap::clear);
+    }
+
+    /**
+     * Runs a read without locking, and again under the read lock if a writer came in
+     * between. Whatever the optimistic attempt returned or threw is discarded then.
+     * Only for reads of a field or two, which cannot loop on a half-written map.
+     */
+    private <R> R read(Supplier<R> read) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                R result = read.get();
+                if (lock.validate(stamp)) {
+                    return result;
+                }
+            }
+            catch (RuntimeException e) {
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        return readLocked(read);
+    }
+
+    /**
+     * Looks up an entry optimistically if the map is a SortedTreeMap, and under the
+     * read lock if it is not or the optimistic lookup failed.
+     * @param bounded The bounded lookup on the tree
+     * @param locked The same lookup on any map
+     * @return A copy of the entry found, or null
+     */
+    private Entry<K, V> lookup(Function<SortedTreeMap<K, V>, Entry<K, V>> bounded, Supplier<Entry<K, V>> locked) {
+        if (tree != null) {
+            Entry<K, V> found = optimistic(bounded);
+            if (found != tree.gaveUp) {
+                return found;
+            }
+        }
+        return readLocked(() -> copy(locked.get()));
+    }
+
+    /**
+     * Runs a bounded lookup on the tree without locking and copies what it found, all
+     * under one optimistic stamp.
+     * @return A copy of the entry found, null if there is none, or tree.gaveUp if the
+     * lookup gave up, failed, or a writer came in between
+     */
+    private Entry<K, V> optimistic(Function<SortedTreeMap<K, V>, Entry<K, V>> bounded) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp == 0) {
+            return tree.gaveUp;
+        }
+        try {
+            Entry<K, V> found = bounded.apply(tree);
+            if (found != tree.gaveUp) {
+                found = copy(found);
+            }
+            return lock.validate(stamp) ? found : tree.gaveUp;
+        }
+        catch (RuntimeException e) {
+            // Read from a half-written tree; the locked read decides.
+            return tree.gaveUp;
+        }
+    }
+
+    private <R> R readLocked(Supplier<R> read) {
+        long stamp = lock.readLock();
+        try {
+            return read.get();
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private <R> R write(Supplier<R> write) {
+        long stamp = lock.writeLock();
+        try {
+            return write.get();
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private <T> Iterable<T> snapshot(Supplier<Iterable<T>> iterable) {
+        long stamp = lock.readLock();
+        try {
+            ArrayList<T> copy = new ArrayList<>(map.size());
+            for (T t : iterable.get()) {
+                copy.add(t);
+            }
+            return copy;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private Entry<K, V> copy(Entry<K, V> entry) {
+        return entry == null ? null : new Entry<>(entry.key, entry.value);
+    }
+}
@@ -0,0 +1,132 @@
+import fj.test.Property;
+import fj.test.runner.PropertyTestRunner;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static fj.test.Gen.choose;
+import static fj.test.Property.*;
+
+@RunWith(PropertyTestRunner.class)
+public class StampedSortedTreeMapTest {
+
+    /**
+     * Check StampedSortedTreeMap around a SortedTreeMap against java.util.TreeMap on
+     * random operations.
+     */
+    public Property behaves_like_tree_map() {
+        return SortedTreeMapTest.behavesLikeTreeMap(() -> new StampedSortedTreeMap<Integer, String>(new SortedTreeMap<>()));
+    }
+
+    /**
+     * Check that readers running next to writers only ever see keys that were added,
+     * and that the writers' increments through replace are not lost.
+     */
+    public Property concurrent_reads_and_writes() {
+        return property(choose(0, 500), count -> {
+            StampedSortedTreeMap<Integer, Integer> tm = new StampedSortedTreeMap<>();
+            tm.add(-1, 0);
+            int writers = 2;
+            AtomicBoolean consistent = new AtomicBoolean(true);
+
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < writers; t++) {
+                int offset = t;
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < count; i++) {
+                        tm.add(i * writers + offset, i * writers + offset);
+                        tm.replace(-1, (key, value) -> value + 1);
+                    }
+                }));
+            }
+            for (int t = 0; t < 2; t++) {
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < count; i++) {
+                        Entry<Integer, Integer> ceiling = tm.higherOrEqualEntry(i);
+                        if (ceiling != null && (ceiling.key < i || !ceiling.key.equals(ceiling.value))) {
+                            consistent.set(false);
+                        }
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                }
+                catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return prop(consistent.get() && tm.getValue(-1) == writers * count && tm.size() == writers * count + 1);
+        });
+    }
+
+    /**
+     * Check the optimistic lookups while writers add and remove keys, which rotates
+     * the tree under the readers: the even keys are never changed, so every lookup of
+     * one must find it and its neighbours, and no reader may hang.
+     */
+    public Property optimistic_reads_during_rotations() {
+        return property(choose(1, 2000), count -> {
+            StampedSortedTreeMap<Integer, Integer> tm = new StampedSortedTreeMap<>();
+            for (int i = 0; i < count; i++) {
+                tm.add(2 * i, 2 * i);
+            }
+            int writers = 2;
+            AtomicBoolean consistent = new AtomicBoolean(true);
+
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < writers; t++) {
+                int offset = t;
+                threads.add(new Thread(() -> {
+                    Random random = new Random(offset);
+                    for (int i = 0; i < 20 * count; i++) {
+                        // Each writer owns the odd keys of its own offset.
+                        int key = 2 * (writers * random.nextInt(count) + offset) + 1;
+                        if (tm.containsKey(key)) {
+                            tm.remove(key);
+                        }
+                        else {
+                            tm.add(key, key);
+                        }
+                    }
+                }));
+            }
+            for (int t = 0; t < 2; t++) {
+                int offset = t;
+                threads.add(new Thread(() -> {
+                    Random random = new Random(writers + offset);
+                    for (int i = 0; i < 20 * count; i++) {
+                        int key = 2 * random.nextInt(count);
+                        Entry<Integer, Integer> ceiling = tm.higherOrEqualEntry(key);
+                        Entry<Integer, Integer> lower = tm.lowerEntry(key);
+                        boolean found = tm.containsKey(key) && tm.getValue(key) == key
+                                && ceiling != null && ceiling.key == key
+                                && (key == 0 ? lower == null : lower != null && lower.key >= key - 2 && lower.key < key)
+                                && tm.min().key == 0 && tm.max().key >= 2 * (count - 1);
+                        if (!found) {
+                            consistent.set(false);
+                        }
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            for (Thread thread : threads) {
+                try {
+                    thread.join(60_000);
+                }
+                catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                if (thread.isAlive()) {
+                    consistent.set(false);
+                }
+            }
+            return prop(consistent.get());
+        });
+    }
+}
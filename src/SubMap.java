@@ -0,0 +1,355 @@
+/**
+ * Range view over an ISortedTreeMap.
+ */
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * A live view of the entries of a map whose keys fall between two bounds. Nothing is
+ * copied: the view seeks to its first entry in the backing map and walks forward only
+ * until it passes the upper bound. Changes through the view are written to the backing
+ * map, and adding a key outside the bounds throws an IllegalArgumentException.
+ *
+ * Stepping uses higherEntry on the backing map; implementations that can step from an
+ * entry directly should override successor and newView.
+ */
+public class SubMap<K extends Comparable<? super K>, V> implements ISortedTreeMap<K, V> {
+    protected final ISortedTreeMap<K, V> backing;
+    private final Comparator<K> comparator;
+    protected final K lo;
+    protected final boolean loInclusive;
+    protected final K hi;
+    protected final boolean hiInclusive;
+
+    /**
+     * @param backing The map to view
+     * @param comparator The ordering of the backing map, or null for natural ordering
+     * @param lo The lower bound, or null if the view has no lower bound
+     * @param loInclusive true if a key equal to lo is in the view
+     * @param hi The upper bound, or null if the view has no upper bound
+     * @param hiInclusive true if a key equal to hi is in the view
+     */
+    public SubMap(ISortedTreeMap<K, V> backing, Comparator<K> comparator,
+                  K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+        this.backing = backing;
+        this.comparator = comparator;
+        this.lo = lo;
+        this.loInclusive = loInclusive;
+        this.hi = hi;
+        this.hiInclusive = hiInclusive;
+        if (lo != null && hi != null && compare(lo, hi) > 0) {
+            throw new IllegalArgumentException("The lower bound is higher than the upper bound");
+        }
+    }
+
+    public Entry<K, V> min() {
+        if (lo == null) {
+            return belowHigh(backing.min());
+        }
+        return belowHigh(loInclusive ? backing.higherOrEqualEntry(lo) : backing.higherEntry(lo));
+    }
+
+    public Entry<K, V> max() {
+        if (hi == null) {
+            return aboveLow(backing.max());
+        }
+        return aboveLow(hiInclusive ? backing.lowerOrEqualEntry(hi) : backing.lowerEntry(hi));
+    }
+
+    public V add(K key, V value) {
+        return backing.add(checkKey(key), value);
+    }
+
+    public V add(Entry<K, V> entry) {
+        return add(entry.key, entry.value);
+    }
+
+    public void replace(K key, V value) throws NoSuchElementException {
+        if (!inRange(key)) {
+            throw new NoSuchElementException("The key is not in the view");
+        }
+        backing.replace(key, value);
+    }
+
+    public void replace(K key, BiFunction<K, V, V> f) throws NoSuchElementException {
+        if (!inRange(key)) {
+            throw new NoSuchElementException("The key is not in the view");
+        }
+        backing.replace(key, f);
+    }
+
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        return backing.compute(checkKey(key), f);
+    }
+
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> f) {
+        return backing.computeIfAbsent(checkKey(key), f);
+    }
+
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        return inRange(key) ? backing.computeIfPresent(key, f) : null;
+    }
+
+    public V putIfAbsent(K key, V value) {
+        return backing.putIfAbsent(checkKey(key), value);
+    }
+
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> f) {
+        return backing.merge(checkKey(key), value, f);
+    }
+
+    public V remove(Object key) throws NoSuchElementException {
+        if (!inRange((K) key)) {
+            throw new NoSuchElementException("The key is not in the view");
+        }
+        return backing.remove(key);
+    }
+
+    public V getValue(Object key) throws NoSuchElementException {
+        if (!inRange((K) key)) {
+            throw new NoSuchElementException("The key is not in the view");
+        }
+        return backing.getValue(key);
+    }
+
+    public boolean containsKey(K key) {
+        return inRange(key) && backing.containsKey(key);
+    }
+
+    public boolean containsValue(V value) {
+        for (V v : values()) {
+            if (v.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Iterable<K> keys() {
+        return () -> new ViewIterator<K>() {
+            public K next() {
+                return nextEntry().key;
+            }
+        };
+    }
+
+    public Iterable<V> values() {
+        return () -> new ViewIterator<V>() {
+            public V next() {
+                return nextEntry().value;
+            }
+        };
+    }
+
+    public Iterable<Entry<K, V>> entries() {
+        return () -> new ViewIterator<Entry<K, V>>() {
+            public Entry<K, V> next() {
+                return nextEntry();
+            }
+        };
+    }
+
+    public Entry<K, V> higherOrEqualEntry(K key) {
+        if (tooLow(key)) {
+            return min();
+        }
+        return belowHigh(backing.higherOrEqualEntry(key));
+    }
+
+    public Entry<K, V> lowerOrEqualEntry(K key) {
+        if (tooHigh(key)) {
+            return max();
+        }
+        return aboveLow(backing.lowerOrEqualEntry(key));
+    }
+
+    public Entry<K, V> higherEntry(K key) {
+        if (tooLow(key)) {
+            return min();
+        }
+        return belowHigh(backing.higherEntry(key));
+    }
+
+    public Entry<K, V> lowerEntry(K key) {
+        if (tooHigh(key)) {
+            return max();
+        }
+        return aboveLow(backing.lowerEntry(key));
+    }
+
+    /**
+     * Adds all entries of the other map. Every key must be inside the range of the view.
+     * @param other The map to add to the current map.
+     * @throws IllegalArgumentException When a key of other is outside the range
+     */
+    public void merge(ISortedTreeMap<K, V> other) {
+        for (K key : other.keys()) {
+            if (!inRange(key)) {
+                throw new IllegalArgumentException("The key is outside the range of the view");
+            }
+        }
+        for (Entry<K, V> entry : other.entries()) {
+            backing.add(entry.key, entry.value);
+        }
+    }
+
+    /**
+     * Removes the entries in the range for which the predicate holds true. Entries
+     * outside the range are never tested.
+     * @param p The predicate that tests which entries should be kept.
+     */
+    public void removeIf(BiPredicate<K, V> p) {
+        ArrayList<K> doomed = new ArrayList<>();
+        for (Entry<K, V> entry : entries()) {
+            if (p.test(entry.key, entry.value)) {
+                doomed.add(entry.key);
+            }
+        }
+        for (K key : doomed) {
+            backing.remove(key);
+        }
+    }
+
+    public boolean isEmpty() {
+        return min() == null;
+    }
+
+    /**
+     * Counts the entries in the range, which takes time linear in their number.
+     * @return Number of entries in the range
+     */
+    public int size() {
+        int count = 0;
+        for (Entry<K, V> ignored : entries()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes every entry in the range from the backing map.
+     */
+    public void clear() {
+        removeIf((key, value) -> true);
+    }
+
+    public ISortedTreeMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        checkBound(fromKey, fromInclusive);
+        checkBound(toKey, toInclusive);
+        return newView(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    public ISortedTreeMap<K, V> headMap(K toKey, boolean inclusive) {
+        checkBound(toKey, inclusive);
+        return newView(lo, loInclusive, toKey, inclusive);
+    }
+
+    public ISortedTreeMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        checkBound(fromKey, inclusive);
+        return newView(fromKey, inclusive, hi, hiInclusive);
+    }
+
+    /**
+     * Creates a view over the same backing map with narrower bounds.
+     */
+    protected ISortedTreeMap<K, V> newView(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+        return new SubMap<>(backing, comparator, lo, loInclusive, hi, hiInclusive);
+    }
+
+    /**
+     * Finds the entry after the given entry in the backing map.
+     * @param entry An entry of the backing map
+     * @return The next entry, or null if there is none
+     */
+    protected Entry<K, V> successor(Entry<K, V> entry) {
+        return backing.higherEntry(entry.key);
+    }
+
+    /**
+     * @return the key, if it can be added to the view
+     * @throws IllegalArgumentException When the key is outside the range of the view
+     */
+    private K checkKey(K key) {
+        if (!inRange(key)) {
+            throw new IllegalArgumentException("The key is outside the range of the view");
+        }
+        return key;
+    }
+
+    /**
+     * Checks if the key is inside the bounds of the view.
+     * @param key The key to check
+     * @return true if the key is in the range, false otherwise
+     */
+    public boolean inRange(K key) {
+        return !tooLow(key) && !tooHigh(key);
+    }
+
+    /**
+     * Checks that a bound for a narrower view does not reach outside this view.
+     */
+    private void checkBound(K key, boolean inclusive) {
+        boolean outside = inclusive ? !inRange(key)
+                : (lo != null && compare(key, lo) < 0) || (hi != null && compare(key, hi) > 0);
+        if (outside) {
+            throw new IllegalArgumentException("The bound is outside the range of the view");
+        }
+    }
+
+    private boolean tooLow(K key) {
+        if (lo == null) {
+            return false;
+        }
+        int compare = compare(key, lo);
+        return compare < 0 || (compare == 0 && !loInclusive);
+    }
+
+    private boolean tooHigh(K key) {
+        if (hi == null) {
+            return false;
+        }
+        int compare = compare(key, hi);
+        return compare > 0 || (compare == 0 && !hiInclusive);
+    }
+
+    private Entry<K, V> belowHigh(Entry<K, V> entry) {
+        return entry == null || tooHigh(entry.key) ? null : entry;
+    }
+
+    private Entry<K, V> aboveLow(Entry<K, V> entry) {
+        return entry == null || tooLow(entry.key) ? null : entry;
+    }
+
+    private int compare(K a, K b) {
+        if (comparator != null) {
+            return comparator.compare(a, b);
+        }
+        return a.compareTo(b);
+    }
+
+    /**
+     * Iterates from the first entry in the range until the upper bound is passed.
+     */
+    private abstract class ViewIterator<T> implements Iterator<T> {
+        private Entry<K, V> next = min();
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        Entry<K, V> nextEntry() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<K, V> entry = next;
+            next = belowHigh(successor(entry));
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Hash index from values to the keys that map to them.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Reverse index for a sorted map: for every value in the map, the keys that have it.
+ * The map tells the index about every entry it gains or loses, and the index answers
+ * whether a value is present in O(1) expected time.
+ *
+ * Most values belong to a single key, so a lone key is stored directly in the hash
+ * table; only values shared by several keys get a sorted set of keys.
+ */
+class ValueIndex<K extends Comparable<? super K>, V> {
+    private final HashMap<V, Object> keysByValue = new HashMap<>();
+    private final Comparator<K> comparator;
+
+    /**
+     * The keys of a value shared by more than one key, in key order.
+     */
+    private static final class Keys<K> extends TreeSet<K> {
+        private static final long serialVersionUID = 1L;
+
+        Keys(Comparator<K> comparator) {
+            super(comparator);
+        }
+    }
+
+    /**
+     * @param comparator The ordering of the keys, or null for their natural ordering
+     */
+    ValueIndex(Comparator<K> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * Records that the key now maps to the value.
+     */
+    void add(K key, V value) {
+        Object keys = keysByValue.get(value);
+        if (keys == null) {
+            keysByValue.put(value, key);
+        }
+        else if (keys instanceof Keys) {
+            ((Keys<K>) keys).add(key);
+        }
+        else {
+            Keys<K> shared = new Keys<>(comparator);
+            shared.add((K) keys);
+            shared.add(key);
+            keysByValue.put(value, shared);
+        }
+    }
+
+    /**
+     * Records that the key no longer maps to the value.
+     */
+    void remove(K key, V value) {
+        Object keys = keysByValue.get(value);
+        if (keys instanceof Keys) {
+            Keys<K> shared = (Keys<K>) keys;
+            shared.remove(key);
+            if (shared.size() == 1) {
+                keysByValue.put(value, shared.first());
+            }
+        }
+        else if (keys != null) {
+            keysByValue.remove(value);
+        }
+    }
+
+    boolean contains(V value) {
+        return keysByValue.containsKey(value);
+    }
+
+    /**
+     * @return the keys that map to the value, in key order
+     */
+    List<K> keysFor(V value) {
+        Object keys = keysByValue.get(value);
+        if (keys == null) {
+            return Collections.emptyList();
+        }
+        if (keys instanceof Keys) {
+            return new ArrayList<>((Keys<K>) keys);
+        }
+        return Collections.singletonList((K) keys);
+    }
+
+    void clear() {
+        keysByValue.clear();
+    }
+}
@@ -0,0 +1,335 @@
+/**
+ * Append-only log of map mutations with group commit.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the changes to a map, one record per change. Each record is
+ *
+ * <pre>
+ *     int    length of the payload
+ *     int    CRC32 of the payload
+ *     byte   operation, PUT, DELETE or CLEAR
+ *     key    for PUT and DELETE, as written by the key codec
+ *     value  for PUT, as written by the value codec
+ * </pre>
+ *
+ * Appending only encodes the record into a buffer in memory and gives it a sequence
+ * number; the caller must serialize appends so that the log order matches the order
+ * the changes were applied in. sync makes every record up to a sequence number
+ * durable. The first caller to sync becomes the leader: it takes all buffered
+ * records, writes them and forces the file, while later callers wait. When it is done,
+ * every waiter whose record was in the batch returns, and the first of the remaining
+ * ones leads the next batch. Under load, one fsync thus covers the records of many
+ * threads.
+ *
+ * A record that was cut short by a crash, or whose checksum does not match, ends the
+ * log; replay stops there and truncates the file.
+ */
+final class WriteAheadLog<K, V> implements Closeable {
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final byte CLEAR = 3;
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+
+    /**
+     * Applies replayed records.
+     */
+    interface Replay<K, V> {
+        void put(K key, V value);
+
+        void delete(K key);
+
+        void clear();
+    }
+
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final CRC32 crc = new CRC32();
+
+    // All guarded by this.
+    private FileChannel channel;
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 12);
+    private long appended;
+    private long durable;
+    private long bytes;
+    private boolean syncing;
+    private IOException failure;
+
+    /**
+     * Opens the log for appending at its end.
+     */
+    WriteAheadLog(Path path, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.channel = open(path);
+        this.bytes = channel.size();
+    }
+
+    /**
+     * Opens the file for appending, creating it if needed. The directory is forced so
+     * that a new file is still there after a crash, along with the records synced to it.
+     */
+    private static FileChannel open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            channel.position(channel.size());
+            SnapshotFile.forceDirectory(path);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * @return The sequence number of the record
+     */
+    synchronized long appendPut(K key, V value) {
+        return append(PUT, key, value);
+    }
+
+    /**
+     * @return The sequence number of the record
+     */
+    synchronized long appendDelete(K key) {
+        return append(DELETE, key, null);
+    }
+
+    /**
+     * @return The sequence number of the record
+     */
+    synchronized long appendClear() {
+        return append(CLEAR, null, null);
+    }
+
+    private long append(byte operation, K key, V value) {
+        int length = 1;
+        if (operation != CLEAR) {
+            length += keyCodec.size(key);
+        }
+        if (operation == PUT) {
+            length += valueCodec.size(value);
+        }
+        reserve(RECORD_HEADER_BYTES + length);
+
+        int start = pending.position();
+        try {
+            pending.position(start + RECORD_HEADER_BYTES);
+            pending.put(operation);
+            if (operation != CLEAR) {
+                keyCodec.write(key, pending);
+            }
+            if (operation == PUT) {
+                valueCodec.write(value, pending);
+            }
+            if (pending.position() != start + RECORD_HEADER_BYTES + length) {
+                throw new IllegalStateException("A codec wrote a different number of bytes than its size");
+            }
+        } catch (RuntimeException e) {
+            // Drop the partial record, which would otherwise end the log on replay.
+            pending.position(start);
+            throw e;
+        }
+
+        ByteBuffer payload = pending.duplicate();
+        payload.flip();
+        payload.position(start + RECORD_HEADER_BYTES);
+        crc.reset();
+        crc.update(payload);
+        pending.putInt(start, length);
+        pending.putInt(start + Integer.BYTES, (int) crc.getValue());
+        bytes += RECORD_HEADER_BYTES + length;
+        return ++appended;
+    }
+
+    private void reserve(int needed) {
+        if (pending.remaining() < needed) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + needed));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+    }
+
+    /**
+     * @return The sequence number of the last record appended
+     */
+    synchronized long lastSequence() {
+        return appended;
+    }
+
+    /**
+     * @return The size of the log file once every appended record is written
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Waits until the record with the sequence number, and every record before it, is
+     * on disk, writing and forcing a batch of records if no other thread is doing so.
+     * @throws IOException When the log could not be written, now or by an earlier batch
+     */
+    void sync(long sequence) throws IOException {
+        ByteBuffer batch;
+        FileChannel target;
+        long upTo;
+        synchronized (this) {
+            while (true) {
+                if (failure != null) {
+                    throw new IOException("The log failed earlier", failure);
+                }
+                if (durable >= sequence) {
+                    return;
+                }
+                if (!syncing) {
+                    break;
+                }
+                waitForBatch();
+            }
+            syncing = true;
+            batch = pending;
+            batch.flip();
+            pending = ByteBuffer.allocate(pending.capacity());
+            target = channel;
+            upTo = appended;
+        }
+
+        IOException error = null;
+        try {
+            write(batch, target);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (this) {
+            syncing = false;
+            if (error == null) {
+                durable = upTo;
+            }
+            else {
+                failure = error;
+            }
+            notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void waitForBatch() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the log", e);
+        }
+    }
+
+    private static void write(ByteBuffer batch, FileChannel channel) throws IOException {
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Makes every appended record durable in the current file, then continues the log
+     * in a new file. The caller must keep other threads from appending meanwhile.
+     */
+    synchronized void rotate(Path path) throws IOException {
+        sync(appended);
+        FileChannel next = open(path);
+        channel.close();
+        channel = next;
+        bytes = next.size();
+    }
+
+    /**
+     * Writes out and forces every appended record, then closes the file.
+     */
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            if (failure == null) {
+                sync(appended);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Applies every whole record in a log file, in order, and cuts off a torn or
+     * corrupt tail.
+     * @return The number of records applied
+     */
+    static <K, V> int replay(Path path, Codec<K> keyCodec, Codec<V> valueCodec, Replay<K, V> replay)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Log too large to replay: " + path);
+            }
+            // Read rather than mapped, since the file may be truncated afterwards.
+            ByteBuffer log = ByteBuffer.allocate((int) channel.size());
+            while (log.hasRemaining() && channel.read(log) >= 0) {
+            }
+            log.flip();
+            CRC32 crc = new CRC32();
+            int records = 0;
+            while (log.remaining() >= RECORD_HEADER_BYTES) {
+                int start = log.position();
+                int length = log.getInt();
+                int checksum = log.getInt();
+                if (length < 1 || length > log.remaining()) {
+                    log.position(start);
+                    break;
+                }
+                ByteBuffer payload = log.slice();
+                payload.limit(length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    log.position(start);
+                    break;
+                }
+                apply(payload, keyCodec, valueCodec, replay);
+                log.position(log.position() + length);
+                records++;
+            }
+            if (log.position() < channel.size()) {
+                channel.truncate(log.position());
+                channel.force(false);
+            }
+            return records;
+        }
+    }
+
+    private static <K, V> void apply(ByteBuffer payload, Codec<K> keyCodec, Codec<V> valueCodec,
+                                     Replay<K, V> replay) throws IOException {
+        byte operation = payload.get();
+        switch (operation) {
+            case PUT:
+                K key = keyCodec.read(payload);
+                replay.put(key, valueCodec.read(payload));
+                break;
+            case DELETE:
+                replay.delete(keyCodec.read(payload));
+                break;
+            case CLEAR:
+                replay.clear();
+                break;
+            default:
+                throw new IOException("Unknown log operation " + operation);
+        }
+    }
+}